@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.text.Layout;
+import android.util.Log;
+import android.view.View;
+
+/**
+ * Tests that {@link NoteEditor.LinedEditText} draws a ruled line only for the lines of text that
+ * are visible, so a frame of a very long note costs the same as a frame of a short one.
+ */
+public class LinedEditTextTest extends AndroidTestCase {
+
+    private static final String TAG = "LinedEditTextTest";
+
+    // The size of the view, as on a phone screen
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+
+    // The number of frames drawn for each measurement
+    private static final int FRAMES = 50;
+
+    /*
+     * Draws a frame in the middle of a 10-line and of a 100k-line note. The short note fits on
+     * the screen and gets a line for each of its lines; the long one gets a line for each line
+     * in the clip only, which is about as many as a screen holds.
+     */
+    public void testDrawsVisibleLines() {
+        NoteEditor.LinedEditText shortNote = createView(10);
+        int shortLines = drawFrame(shortNote);
+        assertEquals(shortNote.getLineCount(), shortLines);
+        assertEquals(getVisibleLineCount(shortNote), shortLines);
+
+        NoteEditor.LinedEditText longNote = createView(100000);
+        int longLines = drawFrame(longNote);
+        assertEquals(getVisibleLineCount(longNote), longLines);
+        int lineHeight = longNote.getLineHeight();
+        assertTrue(longLines + " lines drawn", longLines <= HEIGHT / lineHeight + 2);
+        assertTrue(longLines + " lines drawn", longLines >= HEIGHT / lineHeight);
+    }
+
+    private NoteEditor.LinedEditText createView(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("Line ").append(i).append('\n');
+        }
+        NoteEditor.LinedEditText view = new NoteEditor.LinedEditText(getContext(), null);
+        view.setText(text);
+        view.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        view.layout(0, 0, WIDTH, HEIGHT);
+        view.scrollTo(0, Math.max(0, view.getLayout().getHeight() / 2 - HEIGHT / 2));
+        return view;
+    }
+
+    /*
+     * Draws the view FRAMES times into a canvas that counts the lines passed to drawLines, logs
+     * the time per frame, and returns the number of lines drawn in one frame.
+     */
+    private int drawFrame(NoteEditor.LinedEditText view) {
+        Bitmap bitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        LineCountingCanvas canvas = new LineCountingCanvas(bitmap);
+        int scrollY = view.getScrollY();
+
+        long start = System.nanoTime();
+        for (int frame = 0; frame < FRAMES; frame++) {
+            canvas.lines = 0;
+            beginFrame(canvas, scrollY);
+            view.draw(canvas);
+            canvas.restore();
+        }
+        long nanos = (System.nanoTime() - start) / FRAMES;
+        Log.i(TAG, "Drawing a " + view.getLineCount() + "-line note: " + (nanos / 1000)
+                + " us per frame, " + canvas.lines + " ruled lines");
+
+        bitmap.recycle();
+        return canvas.lines;
+    }
+
+    /*
+     * Returns the number of lines of text between the top and the bottom of the clip
+     */
+    private static int getVisibleLineCount(NoteEditor.LinedEditText view) {
+        Layout layout = view.getLayout();
+        int top = view.getExtendedPaddingTop();
+        int first = layout.getLineForVertical(view.getScrollY() - top);
+        int last = layout.getLineForVertical(view.getScrollY() + HEIGHT - top);
+        return last - first + 1;
+    }
+
+    /*
+     * Scrolls and clips the canvas the way the parent of the view does
+     */
+    private static void beginFrame(Canvas canvas, int scrollY) {
+        canvas.save();
+        canvas.translate(0, -scrollY);
+        canvas.clipRect(0, scrollY, WIDTH, scrollY + HEIGHT);
+    }
+
+    /*
+     * A canvas that counts the lines drawn with drawLines
+     */
+    private static class LineCountingCanvas extends Canvas {
+        int lines;
+
+        LineCountingCanvas(Bitmap bitmap) {
+            super(bitmap);
+        }
+
+        @Override
+        public void drawLines(float[] pts, int offset, int count, Paint paint) {
+            lines += count / 4;
+            super.drawLines(pts, offset, count, paint);
+        }
+    }
+}
@@ -16,23 +16,40 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
 
 /*
  */
@@ -48,6 +65,9 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
 
+    // Tag for logging test measurements.
+    private static final String TAG = "NotePadProviderTest";
+
     // Contains a reference to the mocked content resolver for the provider under test.
     private MockContentResolver mMockResolver;
 
@@ -146,12 +166,8 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             TEST_NOTES[index].setCreationDate(START_DATE + (index * ONE_DAY_MILLIS));
             TEST_NOTES[index].setModificationDate(START_DATE + (index * ONE_WEEK_MILLIS));
 
-            // Adds a record to the database.
-            mDb.insertOrThrow(
-                NotePad.Notes.TABLE_NAME,             // the table name for the insert
-                NotePad.Notes.COLUMN_NAME_TITLE,      // column set to null if empty values map
-                TEST_NOTES[index].getContentValues()  // the values map to insert
-            );
+            // Adds a record to the database. The note body goes to its own table.
+            assertTrue(NotePadProvider.insertNote(mDb, TEST_NOTES[index].getContentValues()) > 0);
         }
     }
 
@@ -186,9 +202,13 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. It offers the two export formats.
+        String[] exportTypes = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI,
+                MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_JSON_LINES, exportTypes[0]);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_CSV, exportTypes[1]);
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -219,10 +239,10 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertNull(mimeType);
 
         /*
-         * Tests with a URI that should not have any associated stream MIME types, but with a
-         * filter that returns all types. The result should still be null.
+         * Tests the notes table URI with the plain text filter. Notes are only exported as
+         * JSON Lines or CSV, so the result should be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT);
         assertNull(mimeType);
 
     }
@@ -415,6 +435,506 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         assertEquals(TEST_NOTES[0].note, inputData[2]);
     }
 
+    /*
+     * Tests the snippet column. It is computed from the note body on every insert and update,
+     * with whitespace collapsed and a bounded length, and values passed by callers are ignored.
+     */
+    public void testSnippets() {
+        final String[] PROJECTION = { NotePad.Notes.COLUMN_NAME_SNIPPET };
+
+        // Inserts a note whose body starts with blank lines and indentation.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "\n\n  First line\n\tsecond   line  ");
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "ignored");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("First line second line", cursor.getString(0));
+        cursor.close();
+
+        // Updates the body with a long text. The snippet follows, cut at its maximum length.
+        StringBuilder longNote = new StringBuilder();
+        while (longNote.length() < NotePadProvider.SNIPPET_LENGTH * 3) {
+            longNote.append("word ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote.toString());
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        String snippet = cursor.getString(0);
+        cursor.close();
+        assertTrue(snippet.length() <= NotePadProvider.SNIPPET_LENGTH);
+        assertTrue(longNote.toString().startsWith(snippet));
+        assertFalse(snippet.endsWith(" "));
+
+        // Updating other columns keeps the snippet.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Retitled");
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, "ignored");
+        mMockResolver.update(noteUri, values, null, null);
+        cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(snippet, cursor.getString(0));
+        cursor.close();
+
+        // Bulk inserts compute the snippet too.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Bulk");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Bulk\r\nnote");
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, new ContentValues[] { values });
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PROJECTION,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Bulk" }, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Bulk note", cursor.getString(0));
+        cursor.close();
+
+        // Surrogate pairs are never cut in half.
+        assertEquals("", NotePadProvider.makeSnippet(null));
+        StringBuilder emoji = new StringBuilder();
+        emoji.append('a');
+        while (emoji.length() < NotePadProvider.SNIPPET_LENGTH + 2) {
+            emoji.append("\uD83D\uDE00");
+        }
+        snippet = NotePadProvider.makeSnippet(emoji.toString());
+        assertFalse(Character.isHighSurrogate(snippet.charAt(snippet.length() - 1)));
+    }
+
+    /*
+     * Tests an update whose selection refers to the note content that it changes. Both tables
+     * are updated for the same notes, selected before either of them changes.
+     */
+    public void testUpdateWhereOnNote() {
+        final String[] PROJECTION = { NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_SNIPPET };
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Old title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "old");
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "other");
+        Uri otherUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "New title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "new");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "old" }));
+
+        Cursor cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("New title", cursor.getString(0));
+        assertEquals("new", cursor.getString(1));
+        assertEquals("new", cursor.getString(2));
+        cursor.close();
+
+        cursor = mMockResolver.query(otherUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Old title", cursor.getString(0));
+        assertEquals("other", cursor.getString(1));
+        cursor.close();
+
+        // The same through a note ID URI with a selection.
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Newer title");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "newer");
+        assertEquals(1, mMockResolver.update(noteUri, values,
+                NotePad.Notes.COLUMN_NAME_NOTE + " = ?", new String[] { "new" }));
+        cursor = mMockResolver.query(noteUri, PROJECTION, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Newer title", cursor.getString(0));
+        assertEquals("newer", cursor.getString(1));
+        cursor.close();
+    }
+
+    /*
+     * Tests exporting the notes table. The export is read in several chunks, and is written as
+     * JSON Lines or CSV. A selection in the options limits the exported notes.
+     */
+    public void testExport() throws Exception {
+        final int NOTE_COUNT = NoteExporter.CHUNK_SIZE * 2 + 10;
+
+        // Inserts more notes than fit in two chunks. The first one needs quoting in CSV.
+        ContentValues[] rows = new ContentValues[NOTE_COUNT];
+        for (int index = 0; index < NOTE_COUNT; index++) {
+            String body = index == 0 ? "Line one, \"quoted\"\nLine two" : "Export note " + index;
+            NoteInfo note = new NoteInfo("Export" + index, body);
+            note.setCreationDate(START_DATE + index);
+            note.setModificationDate(START_DATE + index);
+            rows[index] = note.getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+
+        // Exports as JSON Lines. Every note is one object, in _ID order.
+        long start = System.nanoTime();
+        BufferedReader reader = openExport(NotePad.Notes.EXPORT_TYPE_JSON_LINES, null);
+        int count = 0;
+        long bytes = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            bytes += line.length() + 1;
+            JSONObject object = new JSONObject(line);
+            assertEquals("Export" + count, object.getString(NotePad.Notes.COLUMN_NAME_TITLE));
+            assertEquals(START_DATE + count,
+                    object.getLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
+            if (count == 0) {
+                assertEquals(rows[0].getAsString(NotePad.Notes.COLUMN_NAME_NOTE),
+                        object.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+            }
+            count++;
+        }
+        reader.close();
+        long elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "export: " + count + " notes, " + bytes + " chars in "
+                + (elapsedNanos / 1000000) + " ms, "
+                + (bytes * 1000000000L / Math.max(1, elapsedNanos)) + " chars/s");
+        assertEquals(NOTE_COUNT, count);
+
+        // Exports as CSV. The header lists the columns, and the quoted field spans two lines.
+        reader = openExport(NotePad.Notes.EXPORT_TYPE_CSV, null);
+        assertEquals("_id,title,note,created,modified,category", reader.readLine());
+        assertEquals("1,Export0,\"Line one, \"\"quoted\"\"\"", reader.readLine());
+        assertTrue(reader.readLine().startsWith("Line two\","));
+        int lines = 0;
+        while (reader.readLine() != null) {
+            lines++;
+        }
+        reader.close();
+        assertEquals(NOTE_COUNT - 1, lines);
+
+        // Exports only the notes that match the selection.
+        Bundle opts = new Bundle();
+        opts.putString(NotePad.Notes.EXPORT_OPTION_SELECTION,
+                NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?");
+        opts.putStringArray(NotePad.Notes.EXPORT_OPTION_SELECTION_ARGS,
+                new String[] { "Export1%" });
+        reader = openExport(NotePad.Notes.EXPORT_TYPE_JSON_LINES, opts);
+        count = 0;
+        while ((line = reader.readLine()) != null) {
+            assertTrue(new JSONObject(line).getString(NotePad.Notes.COLUMN_NAME_TITLE)
+                    .startsWith("Export1"));
+            count++;
+        }
+        reader.close();
+        // Export1, Export10..19, Export100..199 and Export1000..1009
+        assertEquals(1 + 10 + 100 + 10, count);
+    }
+
+    /*
+     * Tests importing notes from JSON Lines and CSV files. Invalid rows are skipped and counted,
+     * and an import can resume after the records an earlier call committed.
+     */
+    public void testImport() throws Exception {
+        final int NOTE_COUNT = NoteImporter.BATCH_SIZE * 2 + 10;
+
+        // Writes a JSON Lines file with three invalid rows at the end.
+        StringBuilder json = new StringBuilder();
+        for (int index = 0; index < NOTE_COUNT; index++) {
+            JSONObject object = new JSONObject();
+            object.put(NotePad.Notes._ID, 1000000 + index);
+            object.put(NotePad.Notes.COLUMN_NAME_TITLE, "Import" + index);
+            object.put(NotePad.Notes.COLUMN_NAME_NOTE, "Import note " + index);
+            object.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + index);
+            json.append(object.toString()).append('\n');
+        }
+        json.append("{not json\n");
+        json.append("{\"category\":\"Work\"}\n");
+        json.append("{\"title\":\"Bad date\",\"modified\":\"yesterday\"}\n");
+
+        long start = System.nanoTime();
+        Bundle result = importFile(json.toString(), NotePad.Notes.EXPORT_TYPE_JSON_LINES, 0);
+        long elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "import: " + NOTE_COUNT + " notes in " + (elapsedNanos / 1000000) + " ms, "
+                + (NOTE_COUNT * 1000000000L / Math.max(1, elapsedNanos)) + " notes/s");
+
+        assertNull(result.getString(NotePad.Notes.IMPORT_RESULT_ERROR));
+        assertEquals(NOTE_COUNT, result.getInt(NotePad.Notes.IMPORT_RESULT_IMPORTED));
+        assertEquals(3, result.getInt(NotePad.Notes.IMPORT_RESULT_REJECTED));
+        assertEquals(NOTE_COUNT + 3, result.getInt(NotePad.Notes.IMPORT_RESULT_RECORDS));
+
+        // The imported notes got new IDs, and the missing columns got defaults.
+        Cursor cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_CATEGORY },
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+            new String[] { "Import0" },
+            null
+        );
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getLong(0) < 1000000);
+        assertEquals(NotePad.Notes.CATEGORY_GENERAL, cursor.getString(1));
+        cursor.close();
+
+        // Writes a CSV file with a quoted field, and resumes after the first four records.
+        String csv = "title,note,category\r\n"
+                + "Csv0,\"Line one, \"\"quoted\"\"\r\nLine two\",Work\r\n"
+                + "Csv1,Note 1,\r\n"
+                + "Csv2,Note 2,\r\n"
+                + "Csv3,Note 3,\r\n"
+                + "Csv4,\"Line one, \"\"quoted\"\"\r\nLine two\",Work\r\n"
+                + "Csv5,Note 5,Ideas";
+        result = importFile(csv, NotePad.Notes.EXPORT_TYPE_CSV, 4);
+        assertNull(result.getString(NotePad.Notes.IMPORT_RESULT_ERROR));
+        assertEquals(2, result.getInt(NotePad.Notes.IMPORT_RESULT_IMPORTED));
+        assertEquals(6, result.getInt(NotePad.Notes.IMPORT_RESULT_RECORDS));
+
+        cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                    NotePad.Notes.COLUMN_NAME_CATEGORY },
+            NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ?",
+            new String[] { "Csv%" },
+            NotePad.Notes.COLUMN_NAME_TITLE
+        );
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Csv4", cursor.getString(0));
+        assertEquals("Line one, \"quoted\"\r\nLine two", cursor.getString(1));
+        assertEquals(NotePad.Notes.CATEGORY_WORK, cursor.getString(2));
+        assertTrue(cursor.moveToNext());
+        assertEquals(NotePad.Notes.CATEGORY_IDEAS, cursor.getString(2));
+        cursor.close();
+
+        // An unterminated quote stops the import, and reports the committed records.
+        result = importFile("title\r\nGood\r\n\"Bad", NotePad.Notes.EXPORT_TYPE_CSV, 0);
+        assertNotNull(result.getString(NotePad.Notes.IMPORT_RESULT_ERROR));
+        assertEquals(0, result.getInt(NotePad.Notes.IMPORT_RESULT_RECORDS));
+    }
+
+    /*
+     * Writes the contents to a file and imports it.
+     */
+    private Bundle importFile(String contents, String mimeType, int skip) throws IOException {
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_FILE, openTempFile(contents));
+        extras.putString(NotePad.Notes.IMPORT_EXTRA_MIME_TYPE, mimeType);
+        extras.putInt(NotePad.Notes.IMPORT_EXTRA_SKIP_RECORDS, skip);
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_IMPORT,
+                null, extras);
+    }
+
+    /*
+     * Writes the contents to a temporary file, and returns it opened for reading. The file is
+     * deleted at once; the descriptor keeps it readable.
+     */
+    private ParcelFileDescriptor openTempFile(String contents) throws IOException {
+        File file = new File(getContext().getCacheDir(), "stream.tmp");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        try {
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /*
+     * Tests reading the content of a note as a stream and replacing it from a stream, with a note
+     * long enough to be stored in chunks.
+     */
+    public void testNoteStreams() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < NotePad.Notes.LARGE_NOTE_LENGTH * 2) {
+            text.append("Line ").append(text.length()).append(" \u4e2d\u6587 \ud83d\udcdd\n");
+        }
+        String note = text.toString();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Long note");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        long start = System.nanoTime();
+        assertEquals(note, readNote(uri));
+        long elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "stream read: " + note.length() + " chars in " + (elapsedNanos / 1000000)
+                + " ms");
+
+        // The length column counts characters, as SQLite does.
+        Cursor cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_LENGTH }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(note.codePointCount(0, note.length()), cursor.getInt(0));
+        cursor.close();
+
+        // Puts a surrogate pair across the first chunk boundary of the written stream.
+        StringBuilder replacement = new StringBuilder("  New   content ");
+        while (replacement.length() < NotePadProvider.BODY_CHUNK_LENGTH - 1) {
+            replacement.append('x');
+        }
+        replacement.append("\ud83d\udcdd").append(note);
+        String newNote = replacement.toString();
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_FILE, openTempFile(newNote));
+        ContentValues extraValues = new ContentValues();
+        extraValues.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + 1000);
+        extraValues.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_WORK);
+        extras.putParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_VALUES, extraValues);
+        start = System.nanoTime();
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_WRITE_NOTE, uri.toString(), extras);
+        elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "stream write: " + newNote.length() + " chars in " + (elapsedNanos / 1000000)
+                + " ms");
+
+        assertEquals(1, result.getInt(NotePad.Notes.WRITE_NOTE_RESULT_COUNT));
+        assertNull(result.getString(NotePad.Notes.WRITE_NOTE_RESULT_ERROR));
+        assertEquals(newNote, readNote(uri));
+        cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_TITLE,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+                        NotePad.Notes.COLUMN_NAME_CATEGORY },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePadProvider.makeSnippet(newNote), cursor.getString(0));
+        assertEquals("Long note", cursor.getString(1));
+        assertEquals(START_DATE + 1000, cursor.getLong(2));
+        assertEquals(NotePad.Notes.CATEGORY_WORK, cursor.getString(3));
+        cursor.close();
+
+        // A stream that cannot be read reports an error and leaves the content as it was.
+        File file = File.createTempFile("note", ".txt", getContext().getCacheDir());
+        extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_FILE,
+                ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_WRITE_ONLY));
+        file.delete();
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_WRITE_NOTE,
+                uri.toString(), extras);
+        assertEquals(0, result.getInt(NotePad.Notes.WRITE_NOTE_RESULT_COUNT));
+        assertNotNull(result.getString(NotePad.Notes.WRITE_NOTE_RESULT_ERROR));
+        assertEquals(newNote, readNote(uri));
+
+        // A short content written from a stream replaces the chunks.
+        extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_FILE, openTempFile("Short"));
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_WRITE_NOTE,
+                uri.toString(), extras);
+        assertEquals(1, result.getInt(NotePad.Notes.WRITE_NOTE_RESULT_COUNT));
+        assertEquals("Short", readNote(uri));
+        assertEquals(0, countChunks(ContentUris.parseId(uri)));
+
+        // A note that does not exist cannot be opened.
+        try {
+            mMockResolver.openInputStream(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 999999));
+            fail("Opened a note that does not exist");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Tests that notes longer than LARGE_NOTE_LENGTH are stored in chunks: the note column reads
+     * null, the length and the stream give the whole content, search finds text in any chunk,
+     * and updates and deletes keep the chunks in step.
+     */
+    public void testLargeNotes() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() <= NotePad.Notes.LARGE_NOTE_LENGTH) {
+            text.append("Chunk line ").append(text.length()).append('\n');
+        }
+        text.append("zebra \u7ed3\u5c3e");
+        String note = text.toString();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Large note");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        long noteId = ContentUris.parseId(uri);
+
+        int chunks = (note.length() + NotePadProvider.BODY_CHUNK_LENGTH - 1)
+                / NotePadProvider.BODY_CHUNK_LENGTH;
+        assertEquals(chunks, countChunks(noteId));
+        Cursor cursor = mMockResolver.query(uri, new String[] { NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, NotePad.Notes.COLUMN_NAME_SNIPPET },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.isNull(0));
+        assertEquals(note.length(), cursor.getInt(1));
+        assertEquals(NotePadProvider.makeSnippet(note), cursor.getString(2));
+        cursor.close();
+        assertEquals(note, readNote(uri));
+        assertEquals(note, getProvider().readNote(noteId));
+
+        // The last chunk is found both by the full-text index and by the LIKE fallback.
+        cursor = mMockResolver.query(buildSearchUri("zebra"),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(buildSearchUri("\u7ed3\u5c3e"),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        // The export contains the whole content.
+        BufferedReader reader = openExport(NotePad.Notes.EXPORT_TYPE_JSON_LINES, null);
+        String line;
+        boolean exported = false;
+        while ((line = reader.readLine()) != null) {
+            JSONObject object = new JSONObject(line);
+            if (object.getLong(NotePad.Notes._ID) == noteId) {
+                assertEquals(note, object.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+                exported = true;
+            }
+        }
+        reader.close();
+        assertTrue(exported);
+
+        // A short update stores the content in the note column again.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Small again");
+        assertEquals(1, mMockResolver.update(uri, values, null, null));
+        assertEquals(0, countChunks(noteId));
+        assertEquals("Small again", readNote(uri));
+        cursor = mMockResolver.query(buildSearchUri("zebra"),
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Deleting a large note deletes its chunks.
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        assertEquals(1, mMockResolver.update(uri, values, null, null));
+        assertEquals(chunks, countChunks(noteId));
+        assertEquals(1, mMockResolver.delete(uri, null, null));
+        assertEquals(0, countChunks(noteId));
+    }
+
+    private long countChunks(long noteId) {
+        return DatabaseUtils.queryNumEntries(mDb, NotePadProvider.CHUNKS_TABLE_NAME,
+                NotePadProvider.BODY_COLUMN_NOTE_ID + " = ?",
+                new String[] { Long.toString(noteId) });
+    }
+
+    private String readNote(Uri uri) throws IOException {
+        InputStreamReader reader =
+                new InputStreamReader(mMockResolver.openInputStream(uri), "UTF-8");
+        try {
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            int count;
+            while ((count = reader.read(buffer)) >= 0) {
+                text.append(buffer, 0, count);
+            }
+            return text.toString();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Opens an export stream of the notes table and returns a reader for it.
+     */
+    private BufferedReader openExport(String mimeType, Bundle opts) throws FileNotFoundException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, mimeType, opts);
+        assertNotNull(descriptor);
+        return new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(
+                        descriptor.getParcelFileDescriptor()), Charset.forName("UTF-8")));
+    }
+
     /*
      * Tests the provider's public API for querying data in the table, using the URI for
      * a dataset of records.
@@ -612,6 +1132,340 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
       assertEquals(inputNoteId, cursor.getInt(0));
     }
 
+    /*
+     * Tests full-text searches against the provider, using the search URI. The search index is
+     * kept in sync with the notes table by triggers, so rows inserted directly into the database
+     * must be searchable too.
+     */
+    public void testSearchQueries() {
+        // Tests the MIME type for the search URI.
+        assertEquals(NotePad.Notes.CONTENT_TYPE,
+                mMockResolver.getType(NotePad.Notes.CONTENT_SEARCH_URI));
+
+        // Inserts the test data into the provider's underlying data source.
+        insertData();
+
+        // Searches for a title. Only Note5 has a title token starting with "note5".
+        Cursor cursor = mMockResolver.query(
+            buildSearchUri("Note5"), // the search URI with the search terms
+            null,                    // no projection, get all the columns
+            null,                    // no selection criteria
+            null,                    // no selection arguments
+            null                     // best match first
+        );
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Note5",
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+
+        // Searches with two terms. Both must match, and "thi" matches "This" as a prefix.
+        cursor = mMockResolver.query(buildSearchUri("thi 7"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // A term that is in every note body returns every note.
+        cursor = mMockResolver.query(buildSearchUri("note"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+
+        // Search terms can be combined with a selection on the notes columns.
+        cursor = mMockResolver.query(
+            buildSearchUri("note"),
+            null,
+            NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+            new String[] { "Note3" },
+            null
+        );
+        assertEquals(1, cursor.getCount());
+
+        // Updates a note body and checks that the index follows it.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Rewritten with zebra");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note2" });
+        cursor = mMockResolver.query(buildSearchUri("zebra"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // Deletes the note and checks that it is no longer found.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note2" });
+        cursor = mMockResolver.query(buildSearchUri("zebra"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+
+        // Quotes in the search terms must not break the query.
+        cursor = mMockResolver.query(buildSearchUri("\"Note1"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+
+        // Non-ASCII terms are matched with LIKE, where %, _ and \ in the terms are literals.
+        // Each note in the first column is found, but not the one next to it, which the term
+        // would match only as a pattern.
+        String[] likeNotes = {
+            "\u4f18\u60e0100%", "\u4f18\u60e01000",
+            "\u4ef7\u683c_\u5143", "\u4ef7\u683c8\u5143",
+            "\u8def\u5f84a\\b", "\u8def\u5f84ab"
+        };
+        for (String note : likeNotes) {
+            values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Like");
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        String[] noteProjection = { NotePad.Notes.COLUMN_NAME_NOTE };
+        for (int i = 0; i < likeNotes.length; i += 2) {
+            cursor = mMockResolver.query(buildSearchUri(likeNotes[i]), noteProjection, null,
+                    null, null);
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(likeNotes[i], cursor.getString(0));
+            cursor.close();
+        }
+
+        // Results are ranked by the number of hits, not by the length of the offsets. The newer
+        // note has fewer hits, at offsets long enough to give it the longer offsets string.
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Many hits");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "quagga quagga quagga");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        StringBuilder padding = new StringBuilder();
+        while (padding.length() < 100000) {
+            padding.append('x');
+        }
+        values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Few hits");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, padding + " quagga quagga");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + ONE_WEEK_MILLIS);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        cursor = mMockResolver.query(buildSearchUri("quagga"),
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertEquals(2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Many hits", cursor.getString(0));
+        cursor.close();
+    }
+
+    /*
+     * Tests paging through the notes with the limit and keyset query parameters. Every note must
+     * be returned exactly once, in the paged sort order, even when several notes share the same
+     * modification date.
+     */
+    public void testKeysetPaging() {
+        // Inserts the test data into the provider's underlying data source.
+        insertData();
+
+        // Adds two notes with the same modification date as Note4, so a page boundary falls
+        // between notes that only differ by _ID.
+        for (int index = 0; index < 2; index++) {
+            NoteInfo tie = new NoteInfo("Tie" + index, "Same modification date as note 4");
+            tie.setCreationDate(START_DATE);
+            tie.setModificationDate(START_DATE + (4 * ONE_WEEK_MILLIS));
+            assertTrue(NotePadProvider.insertNote(mDb, tie.getContentValues()) > 0);
+        }
+        final int totalNotes = TEST_NOTES.length + 2;
+        final int pageSize = 3;
+
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        HashSet<Long> seenIds = new HashSet<Long>();
+        long lastModified = Long.MAX_VALUE;
+        long lastId = Long.MAX_VALUE;
+        boolean firstPage = true;
+        int pages = 0;
+
+        while (true) {
+            Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon().appendQueryParameter(
+                    NotePad.Notes.QUERY_PARAMETER_LIMIT, Integer.toString(pageSize));
+            if (!firstPage) {
+                builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED,
+                        Long.toString(lastModified));
+                builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID,
+                        Long.toString(lastId));
+            }
+
+            Cursor cursor = mMockResolver.query(builder.build(), PAGE_PROJECTION, null, null,
+                    NotePad.Notes.PAGED_SORT_ORDER);
+            try {
+                assertTrue(cursor.getCount() <= pageSize);
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    long modified = cursor.getLong(1);
+
+                    // Each row comes strictly after the previous one in the paged order.
+                    assertTrue(modified < lastModified
+                            || (modified == lastModified && id < lastId));
+                    assertTrue(seenIds.add(id));
+                    lastModified = modified;
+                    lastId = id;
+                }
+                pages++;
+                if (cursor.getCount() < pageSize) {
+                    break;
+                }
+            } finally {
+                cursor.close();
+            }
+            firstPage = false;
+        }
+
+        assertEquals(totalNotes, seenIds.size());
+        assertEquals(totalNotes / pageSize + 1, pages);
+
+        // A limit that is not a number is rejected.
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "ten").build(),
+                    PAGE_PROJECTION, null, null, null);
+            fail("Expected an IllegalArgumentException for a non-numeric limit");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /*
+     * Tests that the list queries are executed through the secondary indexes instead of scanning
+     * and sorting the whole notes table.
+     */
+    public void testQueryPlansUseIndexes() {
+        // Inserts the test data into the provider's underlying data source.
+        insertData();
+
+        // The columns the notes list reads for each row.
+        final String[] LIST_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+        };
+        final String CATEGORY_SELECTION = NotePad.Notes.COLUMN_NAME_CATEGORY + " = ?";
+        final String[] CATEGORY_ARGS = { NotePad.Notes.CATEGORY_WORK };
+
+        // The provider logs every query with its plan when the threshold is 0, so the plans
+        // below are those of the statements its query builder actually ran.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_SET_SLOW_QUERY_THRESHOLD, "0", null);
+
+        // The full list, in the default sort order, walks the modification date index. The list
+        // does not read the note column, so the join is left out and the body table is never
+        // read.
+        String plan = queryPlan(NotePad.Notes.CONTENT_URI, LIST_PROJECTION, null, null);
+        assertTrue(plan, plan.contains(NotePadProvider.INDEX_MODIFIED));
+        assertFalse(plan, plan.contains(NotePadProvider.BODY_TABLE_NAME));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The category filter uses the composite index for both the filter and the sort.
+        plan = queryPlan(NotePad.Notes.CONTENT_URI, LIST_PROJECTION, CATEGORY_SELECTION,
+                CATEGORY_ARGS);
+        assertTrue(plan, plan.contains(NotePadProvider.INDEX_CATEGORY_MODIFIED));
+        assertTrue(plan, plan.contains("SEARCH"));
+        assertFalse(plan, plan.contains("SCAN"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The first page, as the list reads it. The index holds the _ID after the modification
+        // date, so the paged order with its _ID tie breaker needs no sort either.
+        Uri firstPage = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT, "50")
+                .build();
+        plan = queryPlan(firstPage, LIST_PROJECTION, null, null);
+        assertTrue(plan, plan.contains(NotePadProvider.INDEX_MODIFIED));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // A page after the first one starts with a seek into the index instead of a scan from
+        // its start.
+        Uri nextPage = firstPage.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED,
+                        String.valueOf(START_DATE + (4 * ONE_WEEK_MILLIS)))
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID, "5")
+                .build();
+        plan = queryPlan(nextPage, LIST_PROJECTION, null, null);
+        assertTrue(plan, plan.contains(NotePadProvider.INDEX_MODIFIED));
+        assertTrue(plan, plan.contains("SEARCH"));
+        assertFalse(plan, plan.contains("SCAN"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+
+        // The same page of one category.
+        plan = queryPlan(nextPage, LIST_PROJECTION, CATEGORY_SELECTION, CATEGORY_ARGS);
+        assertTrue(plan, plan.contains(NotePadProvider.INDEX_CATEGORY_MODIFIED));
+        assertTrue(plan, plan.contains("SEARCH"));
+        assertFalse(plan, plan.contains("SCAN"));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
+    /*
+     * Tests that the provider's database connection is configured from res/values/config.xml.
+     */
+    public void testConnectionConfiguration() {
+        // Gets the configuration the provider was built with.
+        Resources res = getMockContext().getResources();
+
+        // The journal mode is stored in the database file, so any connection reports it.
+        boolean writeAheadLogging = res.getBoolean(R.bool.db_write_ahead_logging);
+        String expectedMode = writeAheadLogging ? "wal" : "delete";
+        assertEquals(expectedMode, queryPragma("journal_mode").toLowerCase());
+
+        // The other settings belong to each connection. The primary connection runs every
+        // write, and gets the configured cache size and checkpoint interval.
+        assertEquals(res.getInteger(R.integer.db_cache_size),
+                Integer.parseInt(queryPragma("cache_size")));
+        int synchronous = Integer.parseInt(queryPragma("synchronous"));
+        if (writeAheadLogging) {
+            assertEquals(res.getInteger(R.integer.db_wal_autocheckpoint),
+                    Integer.parseInt(queryPragma("wal_autocheckpoint")));
+            // The framework sets the level of WAL connections. NORMAL or more keeps the
+            // database from being corrupted.
+            assertTrue("synchronous " + synchronous, synchronous >= 1);
+        } else {
+            // OFF, NORMAL, FULL and EXTRA are reported as 0 to 3.
+            assertEquals(Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA").indexOf(
+                    res.getString(R.string.db_synchronous).toUpperCase()), synchronous);
+        }
+    }
+
+    // Returns the current value of a PRAGMA on the provider's primary connection. A transaction
+    // always runs there, while a query outside one may go to any connection of the pool.
+    private String queryPragma(String pragma) {
+        mDb.beginTransaction();
+        try {
+            Cursor cursor = mDb.rawQuery("PRAGMA " + pragma, null);
+            try {
+                assertTrue(cursor.moveToFirst());
+                return cursor.getString(0);
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    // Runs a query through the provider and returns the plan that its slow query log recorded
+    // for the SQL the provider built. The slow query threshold must be 0.
+    private String queryPlan(Uri uri, String[] projection, String selection,
+            String[] selectionArgs) {
+        return lastQuery(uri, projection, selection, selectionArgs)
+                .getString(NotePad.Notes.SLOW_QUERY_PLAN);
+    }
+
+    // Runs a query through the provider and returns what its slow query log recorded for it.
+    // The slow query threshold must be 0.
+    private Bundle lastQuery(Uri uri, String[] projection, String selection,
+            String[] selectionArgs) {
+        mMockResolver.query(uri, projection, selection, selectionArgs, null).close();
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_SLOW_QUERIES, null, null);
+        ArrayList<Bundle> queries =
+                result.getParcelableArrayList(NotePad.Notes.SLOW_QUERIES_RESULT);
+        return queries.get(queries.size() - 1);
+    }
+
+    // Builds a search URI for the given search terms.
+    private static Uri buildSearchUri(String terms) {
+        return NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, terms)
+                .build();
+    }
+
     /*
      *  Tests inserts into the data model.
      */
@@ -685,6 +1539,103 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
         }
     }
 
+    /*
+     * Tests inserting many notes at once. All of the rows are written in one transaction, and
+     * missing columns get the same defaults as a single insert.
+     */
+    public void testBulkInsert() {
+        final int NOTE_COUNT = 10000;
+
+        // Builds the rows. Every tenth row leaves out the optional columns.
+        ContentValues[] rows = new ContentValues[NOTE_COUNT];
+        for (int index = 0; index < NOTE_COUNT; index++) {
+            if (index % 10 == 0) {
+                rows[index] = new ContentValues();
+                rows[index].put(NotePad.Notes.COLUMN_NAME_NOTE, "Bulk note " + index);
+            } else {
+                NoteInfo note = new NoteInfo("Bulk" + index, "Bulk note " + index);
+                note.setCreationDate(START_DATE + index);
+                note.setModificationDate(START_DATE + index);
+                rows[index] = note.getContentValues();
+            }
+        }
+
+        // Inserts the rows and reports the throughput.
+        long notifications = getStatsCount(NotePad.Notes.STATS_NOTIFICATIONS);
+        long start = System.nanoTime();
+        int inserted = mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, rows);
+        long elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "bulkInsert: " + NOTE_COUNT + " rows in " + (elapsedNanos / 1000000) + " ms, "
+                + (NOTE_COUNT * 1000000000L / Math.max(1, elapsedNanos)) + " rows/s");
+
+        // Asserts that every row was inserted, with a single notification for the whole call.
+        assertEquals(NOTE_COUNT, inserted);
+        assertEquals(notifications + 1, getStatsCount(NotePad.Notes.STATS_NOTIFICATIONS));
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(NOTE_COUNT, cursor.getCount());
+
+        // Asserts that a row without a category got the default one.
+        cursor = mMockResolver.query(
+            NotePad.Notes.CONTENT_URI,
+            new String[] { NotePad.Notes.COLUMN_NAME_CATEGORY },
+            NotePad.Notes.COLUMN_NAME_NOTE + " = ?",
+            new String[] { "Bulk note 0" },
+            null
+        );
+        assertTrue(cursor.moveToFirst());
+        assertEquals(NotePad.Notes.CATEGORY_GENERAL, cursor.getString(0));
+
+        // Bulk inserts are only allowed on the notes URI.
+        try {
+            mMockResolver.bulkInsert(INVALID_URI, rows);
+            fail("Expected bulk insert failure for an invalid URI but it succeeded.");
+        } catch (IllegalArgumentException e) {
+            // succeeded, so do nothing.
+        }
+    }
+
+    /*
+     * Tests applying a batch of operations. Every operation is applied in one transaction, and
+     * insert results can be referenced by later operations in the batch.
+     */
+    public void testApplyBatch() throws Exception {
+        NoteInfo note = new NoteInfo("Batch0", "Batch note");
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(note.getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newUpdate(NotePad.Notes.CONTENT_URI)
+                .withValue(NotePad.Notes.COLUMN_NAME_TITLE, "Batch1")
+                .withSelection(NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Batch0" })
+                .build());
+
+        long notifications = getStatsCount(NotePad.Notes.STATS_NOTIFICATIONS);
+        long suppressed = getStatsCount(NotePad.Notes.STATS_SUPPRESSED_NOTIFICATIONS);
+        ContentProviderResult[] results = mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+
+        // Asserts that the insert returned a URI and the update changed one row.
+        assertEquals(2, results.length);
+        assertNotNull(results[0].uri);
+        assertEquals(1, results[1].count.intValue());
+
+        // The two operations do not notify on their own; the batch notifies once at the end.
+        assertEquals(notifications + 1, getStatsCount(NotePad.Notes.STATS_NOTIFICATIONS));
+        assertEquals(suppressed + 2,
+                getStatsCount(NotePad.Notes.STATS_SUPPRESSED_NOTIFICATIONS));
+
+        Cursor cursor = mMockResolver.query(results[0].uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Batch1", cursor.getString(0));
+    }
+
+    // Returns one of the notification counts in the provider's statistics.
+    private long getStatsCount(String key) {
+        return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_GET_STATS,
+                null, null).getLong(key);
+    }
+
     /*
      * Tests deletions from the data model.
      */
@@ -790,6 +1741,311 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Updates and reads single notes by their note ID URIs, cycling through more notes than a
+     * connection caches statements for. The _ID is bound as an argument, so every note shares
+     * the same SQL, and the provider compiles its update statements once for all of them.
+     */
+    public void testNoteIdStatements() {
+        final int NOTE_COUNT = 200;
+        final int CALLS = 2000;
+
+        long[] ids = new long[NOTE_COUNT];
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Note" + i);
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Body " + i);
+            ids[i] = NotePadProvider.insertNote(mDb, values);
+        }
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE };
+
+        // The first save of a note compiles its statements; saving any other note with the same
+        // columns reuses them.
+        int statements = -1;
+        for (int i = 0; i < CALLS; i++) {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "After " + i);
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, START_DATE + i);
+            assertEquals(1, mMockResolver.update(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            ids[i % NOTE_COUNT]), values, null, null));
+            if (i == 0) {
+                statements = getProvider().getUpdateStatementCountForTest();
+            }
+        }
+        assertTrue(statements > 0);
+        assertEquals(statements, getProvider().getUpdateStatementCountForTest());
+
+        // Reads with a selection skip the note cache and run SQL, which the slow query log
+        // records when the threshold is 0. Every note is read with the same SQL.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_SET_SLOW_QUERY_THRESHOLD, "0", null);
+        String sql = null;
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            Uri uri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[i]);
+            Bundle query = lastQuery(uri, projection,
+                    NotePad.Notes.COLUMN_NAME_TITLE + " IS NOT NULL", null);
+            if (sql == null) {
+                sql = query.getString(NotePad.Notes.SLOW_QUERY_SQL);
+            }
+            assertEquals(sql, query.getString(NotePad.Notes.SLOW_QUERY_SQL));
+        }
+
+        // The last update of every note is in place, with its snippet.
+        long id = ids[NOTE_COUNT - 1];
+        Cursor cursor = mMockResolver.query(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id),
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_SNIPPET,
+                        NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("After " + (CALLS - 1), cursor.getString(0));
+        assertEquals("After " + (CALLS - 1), cursor.getString(1));
+        assertEquals(START_DATE + CALLS - 1, cursor.getLong(2));
+        cursor.close();
+
+        // A note ID with a selection still binds the caller's arguments after the _ID.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        Uri uri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id);
+        assertEquals(0, mMockResolver.update(uri, values, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { "Note0" }));
+        assertEquals(1, mMockResolver.update(uri, values, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { "Note" + (NOTE_COUNT - 1) }));
+        assertEquals(1, mMockResolver.delete(uri, NotePad.Notes.COLUMN_NAME_TITLE + " = ?",
+                new String[] { "Renamed" }));
+    }
+
+    /*
+     * Tests the cache of single notes. Repeated note ID queries are answered from it, updates
+     * by note ID are seen at once, and updates of the notes table and deletes remove notes
+     * from it. Long note contents are never cached.
+     */
+    public void testNoteCache() {
+        NoteCache cache = getProvider().getNoteCache();
+        String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE,
+                NotePad.Notes.COLUMN_NAME_SNIPPET };
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cached");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "First body");
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        // The first query reads the database, the second one comes from the cache.
+        assertNote(uri, projection, "Cached", "First body", "First body");
+        long hits = cache.getHitCount();
+        assertNote(uri, projection, "Cached", "First body", "First body");
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // An update by note ID is written through, with the new snippet.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Second  body");
+        assertEquals(1, mMockResolver.update(uri, values, null, null));
+        assertNote(uri, projection, "Cached", "Second  body", "Second body");
+        assertEquals(hits + 2, cache.getHitCount());
+
+        // An update of the notes table removes the note from the cache.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(NotePad.Notes.CONTENT_URI, values, null, null);
+        assertNote(uri, projection, "Renamed", "Second  body", "Second body");
+
+        // A long note is cached without its content, so queries of the content read it.
+        StringBuilder longNote = new StringBuilder();
+        while (longNote.length() <= NoteCache.MAX_NOTE_LENGTH) {
+            longNote.append("word ");
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote.toString());
+        mMockResolver.update(uri, values, null, null);
+        hits = cache.getHitCount();
+        Cursor cursor = mMockResolver.query(uri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(longNote.toString(), cursor.getString(1));
+        cursor.close();
+        cursor = mMockResolver.query(uri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE_LENGTH }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(longNote.length(), cursor.getInt(0));
+        cursor.close();
+        assertEquals(hits + 1, cache.getHitCount());
+
+        // A deleted note is not returned any more.
+        assertEquals(1, mMockResolver.delete(uri, null, null));
+        cursor = mMockResolver.query(uri, projection, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Reads a note on another connection while an update of it is executed but not committed.
+     * The reader sees the old row; it must not stay in the cache after the commit.
+     */
+    public void testNoteCacheReadDuringCommit() throws Exception {
+        if (!mDb.isWriteAheadLoggingEnabled()) {
+            // 没有WAL时读取要等写入提交，不会读到旧行
+            return;
+        }
+        final String[] projection = { NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_SNIPPET };
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Before");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Old body");
+        final Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        // 清空缓存，让提交前的读取把从数据库读到的行放入缓存
+        assertNote(uri, projection, "Before", "Old body", "Old body");
+        getProvider().getNoteCache().remove(ContentUris.parseId(uri));
+
+        final String[] seen = new String[1];
+        getProvider().setBeforeCommitForTest(new Runnable() {
+            @Override
+            public void run() {
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        Cursor cursor = getProvider().query(uri, projection, null, null, null);
+                        cursor.moveToFirst();
+                        seen[0] = cursor.getString(1);
+                        cursor.close();
+                    }
+                };
+                reader.start();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        try {
+            values.clear();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "New body");
+            assertEquals(1, mMockResolver.update(uri, values, null, null));
+        } finally {
+            getProvider().setBeforeCommitForTest(null);
+        }
+
+        assertEquals("Old body", seen[0]);
+        assertNote(uri, projection, "Before", "New body", "New body");
+    }
+
+    private void assertNote(Uri uri, String[] projection, String title, String note,
+            String snippet) {
+        Cursor cursor = mMockResolver.query(uri, projection, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(title, cursor.getString(0));
+        assertEquals(note, cursor.getString(1));
+        assertEquals(snippet, cursor.getString(2));
+        cursor.close();
+    }
+
+    /*
+     * Tests the statistics returned by METHOD_GET_STATS. Every call is counted under its
+     * operation and kind of URI, with its rows, and falls into one bucket of the histogram.
+     */
+    public void testStats() throws Exception {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Counted");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Counted note");
+        Uri uri = mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI,
+                new ContentValues[] { values, values });
+        for (int i = 0; i < 3; i++) {
+            mMockResolver.query(uri, null, null, null, null).close();
+        }
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Recounted");
+        mMockResolver.update(uri, values, null, null);
+        InputStream in = mMockResolver.openInputStream(uri);
+        while (in.read() != -1) {
+            // 读完整个内容
+        }
+        in.close();
+
+        Bundle stats = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_STATS, null, null);
+        long[] bounds = stats.getLongArray(NotePad.Notes.STATS_HISTOGRAM_BOUNDS);
+        assertEquals(ProviderStats.BUCKET_COUNT, bounds.length);
+
+        Bundle inserts = stats.getBundle("insert:notes");
+        assertEquals(2, inserts.getLong(NotePad.Notes.STATS_COUNT));
+        assertEquals(3, inserts.getLong(NotePad.Notes.STATS_ROWS));
+
+        // Opening the stream queries the note too.
+        Bundle queries = stats.getBundle("query:notes/#");
+        assertEquals(4, queries.getLong(NotePad.Notes.STATS_COUNT));
+        assertEquals(4, queries.getLong(NotePad.Notes.STATS_ROWS));
+        long calls = 0;
+        for (long count : queries.getLongArray(NotePad.Notes.STATS_HISTOGRAM)) {
+            calls += count;
+        }
+        assertEquals(queries.getLong(NotePad.Notes.STATS_COUNT), calls);
+        assertTrue(queries.getLong(NotePad.Notes.STATS_MAX_MICROS)
+                <= queries.getLong(NotePad.Notes.STATS_TOTAL_MICROS));
+
+        assertEquals(1, stats.getBundle("update:notes/#").getLong(NotePad.Notes.STATS_ROWS));
+        assertEquals("Counted note".length(),
+                stats.getBundle("stream:notes/#").getLong(NotePad.Notes.STATS_BYTES));
+        assertNull(stats.getBundle("delete:notes"));
+        assertEquals(3, stats.getLong(NotePad.Notes.STATS_NOTIFICATIONS));
+
+        // Buckets double in width, starting at FIRST_BUCKET_MICROS.
+        assertEquals(0, ProviderStats.getBucket(0));
+        assertEquals(0, ProviderStats.getBucket(31999));
+        assertEquals(1, ProviderStats.getBucket(32000));
+        assertEquals(2, ProviderStats.getBucket(64000));
+        assertEquals(ProviderStats.BUCKET_COUNT - 1, ProviderStats.getBucket(Long.MAX_VALUE));
+    }
+
+    /*
+     * Tests the slow query log. With a threshold of 0 every query is logged with its SQL, the
+     * shapes of its arguments, its row count and its plan; argument values are never kept.
+     */
+    public void testSlowQueries() {
+        insertData();
+        mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_SET_SLOW_QUERY_THRESHOLD, "0", null);
+
+        mMockResolver.query(buildSearchUri("Note1"), null, null, null, null).close();
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "secret title" },
+                null).close();
+
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_SLOW_QUERIES, null, null);
+        assertEquals(0, result.getLong(NotePad.Notes.SLOW_QUERY_THRESHOLD_MILLIS));
+        assertEquals(2, result.getLong(NotePad.Notes.SLOW_QUERIES_TOTAL));
+        ArrayList<Bundle> queries =
+                result.getParcelableArrayList(NotePad.Notes.SLOW_QUERIES_RESULT);
+        assertEquals(2, queries.size());
+
+        // The search runs a MATCH on the full-text table.
+        Bundle query = queries.get(0);
+        assertTrue(query.getString(NotePad.Notes.SLOW_QUERY_SQL).contains("MATCH"));
+        assertTrue(query.getInt(NotePad.Notes.SLOW_QUERY_ROWS) >= 1);
+        assertFalse(TextUtils.isEmpty(query.getString(NotePad.Notes.SLOW_QUERY_PLAN)));
+
+        // The value of the argument is replaced by its shape.
+        query = queries.get(1);
+        assertEquals(0, query.getInt(NotePad.Notes.SLOW_QUERY_ROWS));
+        String[] args = query.getStringArray(NotePad.Notes.SLOW_QUERY_ARGS);
+        assertEquals(1, args.length);
+        assertEquals("text(12)", args[0]);
+        assertFalse(query.getString(NotePad.Notes.SLOW_QUERY_SQL).contains("secret"));
+
+        // Queries under the threshold are not logged.
+        mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_SET_SLOW_QUERY_THRESHOLD, "60000", null);
+        mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null).close();
+        result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_GET_SLOW_QUERIES, null, null);
+        assertEquals(2, result.getLong(NotePad.Notes.SLOW_QUERIES_TOTAL));
+
+        assertNull(SlowQueryLog.getArgShapes(null));
+        assertEquals("null", SlowQueryLog.getArgShapes(new String[] { null })[0]);
+        assertEquals("integer", SlowQueryLog.getArgShapes(new String[] { "-42" })[0]);
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2008 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Locale;
+
+/**
+ * Tests the {@link TimestampFormatter} used by the notes list.
+ */
+public class TimestampFormatterTest extends AndroidTestCase {
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // An arbitrary "current time" for the tests: January 1, 2010 at 12 noon
+    private static final long NOW =
+        new GregorianCalendar(2010, Calendar.JANUARY, 1, 12, 0, 0).getTimeInMillis();
+
+    // The number of row timestamps formatted while scrolling
+    private static final int FORMATTED_ROWS = 20000;
+
+    private TimestampFormatter mFormatter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFormatter = new TimestampFormatter(getContext());
+    }
+
+    /*
+     * Tests that recent timestamps are shown relative to the current time.
+     */
+    public void testRelativeTimes() {
+        assertEquals(getContext().getString(R.string.time_just_now),
+                mFormatter.format(NOW - 30 * 1000, NOW));
+        assertEquals(getContext().getString(R.string.time_minutes_ago, 5),
+                mFormatter.format(NOW - 5 * MINUTE_MILLIS - 1000, NOW));
+        assertEquals(getContext().getString(R.string.time_hours_ago, 23),
+                mFormatter.format(NOW - DAY_MILLIS + 1, NOW));
+
+        // Relative strings are built once and then reused.
+        assertSame(mFormatter.format(NOW - 5 * MINUTE_MILLIS, NOW),
+                mFormatter.format(NOW - 5 * MINUTE_MILLIS - 30 * 1000, NOW));
+    }
+
+    /*
+     * Tests that older and future timestamps are formatted like the list used to format them,
+     * and that the cache is keyed by the minute, not just by its slot.
+     */
+    public void testAbsoluteTimes() {
+        SimpleDateFormat expected = new SimpleDateFormat("yyyy/MM/dd HH:mm", Locale.getDefault());
+
+        long old = NOW - 3 * DAY_MILLIS;
+        assertEquals(expected.format(new Date(old)), mFormatter.format(old, NOW));
+
+        long future = NOW + HOUR_MILLIS;
+        assertEquals(expected.format(new Date(future)), mFormatter.format(future, NOW));
+
+        // Timestamps in the same minute share one string.
+        assertSame(mFormatter.formatAbsolute(old), mFormatter.formatAbsolute(old + 1000));
+
+        // More minutes than the cache holds: slots are shared, but never return another
+        // minute's string.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 1000; i++) {
+                long timestamp = old - i * MINUTE_MILLIS;
+                assertEquals(expected.format(new Date(timestamp)),
+                        mFormatter.formatAbsolute(timestamp));
+            }
+        }
+    }
+
+    /*
+     * Formats the timestamps of a list of notes scrolled through several times, and checks that
+     * once they are cached, formatting does not allocate. The notes were modified every two
+     * hours; fewer of them than the cache has slots, and minutes that far apart never share a
+     * slot.
+     */
+    @SuppressWarnings("deprecation")
+    public void testCachedFormatAllocations() {
+        long[] timestamps = new long[100];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = NOW - i * 2 * HOUR_MILLIS;
+        }
+        for (long timestamp : timestamps) {
+            assertNotNull(mFormatter.format(timestamp, NOW));
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int i = 0; i < FORMATTED_ROWS; i++) {
+            mFormatter.format(timestamps[i % timestamps.length], NOW);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        assertEquals(0, allocations);
+    }
+}
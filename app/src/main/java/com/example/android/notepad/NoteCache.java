@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.support.v4.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory LRU cache of single-note rows for {@link NotePadProvider}, bounded by the memory
+ * that the cached text takes. The provider answers note ID queries for recently used notes from
+ * it with a MatrixCursor, without going to the database.
+ *
+ * The provider removes a note when it changes, and updates the cached row in place when a note
+ * is updated by its ID. Both happen after the change is committed. A row read from the database
+ * is only cached if nothing was invalidated since the read started, so a row read before a
+ * write was committed never replaces the newer one.
+ */
+final class NoteCache {
+
+    // 缓存的最大字节数，按字符串占用的内存估算
+    static final int MAX_SIZE = 1024 * 1024;
+
+    // 内容超过这个字符数时只缓存其他列
+    static final int MAX_NOTE_LENGTH = 64 * 1024;
+
+    // 每行除字符串以外的大致开销
+    private static final int ROW_OVERHEAD = 64;
+
+    /**
+     * The cached columns, in the order of the values of a row
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_NOTE, // 2
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE, // 3
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 4
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 5
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 6
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH // 7
+    };
+    static final int COLUMN_INDEX_NOTE = 2;
+    static final int COLUMN_INDEX_NOTE_LENGTH = 7;
+
+    /**
+     * 缓存的一行。内容太长时note为null，hasNote为false，需要内容的查询不使用缓存
+     */
+    static final class Row {
+        final Object[] values;
+        final boolean hasNote;
+
+        Row(Object[] values, boolean hasNote) {
+            this.values = values;
+            this.hasNote = hasNote;
+        }
+    }
+
+    private final LruCache<Long, Row> mRows = new LruCache<Long, Row>(MAX_SIZE) {
+        @Override
+        protected int sizeOf(Long noteId, Row row) {
+            int size = ROW_OVERHEAD;
+            for (Object value : row.values) {
+                if (value instanceof String) {
+                    size += ((String) value).length() * 2;
+                }
+            }
+            return size;
+        }
+    };
+
+    // 每次失效加一。查询数据库前记下，放入时不一致就丢弃读到的行。由this保护
+    private long mGeneration;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * 投影中的列都能由缓存提供时返回true
+     */
+    static boolean canServe(String[] projection) {
+        if (projection == null || projection.length == 0) {
+            return false;
+        }
+        for (String column : projection) {
+            if (indexOf(column) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从缓存中返回只含这条笔记的Cursor。不在缓存中，或者需要的内容没有缓存时返回null。
+     * 投影必须满足canServe。
+     */
+    Cursor query(long noteId, String[] projection) {
+        Row row = mRows.get(noteId);
+        Cursor cursor = row != null ? newCursor(row, projection) : null;
+        if (cursor != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return cursor;
+    }
+
+    /**
+     * 返回只含这一行的Cursor。需要的内容没有缓存时返回null
+     */
+    static Cursor newCursor(Row row, String[] projection) {
+        if (!row.hasNote && containsNote(projection)) {
+            return null;
+        }
+        Object[] values = new Object[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            values[i] = row.values[indexOf(projection[i])];
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        cursor.addRow(values);
+        return cursor;
+    }
+
+    /**
+     * 开始从数据库读取要放入缓存的行之前调用，返回值传给put
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * 放入从数据库读出的一行。读取开始后有过失效时丢弃，那时读到的可能是旧的值
+     */
+    synchronized void put(long noteId, Row row, long generation) {
+        if (generation == mGeneration) {
+            mRows.put(noteId, row);
+        }
+    }
+
+    /**
+     * 按_ID更新的笔记提交后，把缓存中的这一行改成新的值。values中有缓存以外的列时移除这一行
+     *
+     * @param values 写入notes表和内容表的值，包括重新生成的摘要
+     */
+    synchronized void update(long noteId, ContentValues values) {
+        mGeneration++;
+        Row row = mRows.get(noteId);
+        if (row == null) {
+            return;
+        }
+
+        Object[] updated = row.values.clone();
+        boolean hasNote = row.hasNote;
+        for (String column : values.keySet()) {
+            int index = indexOf(column);
+            if (index < 0 || index == COLUMN_INDEX_NOTE_LENGTH) {
+                mRows.remove(noteId);
+                return;
+            }
+            updated[index] = values.get(column);
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            String note = values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            // 和SQLite的length()一样按字符计数
+            updated[COLUMN_INDEX_NOTE_LENGTH] = note != null
+                    ? Long.valueOf(note.codePointCount(0, note.length())) : null;
+            hasNote = note == null || note.length() <= MAX_NOTE_LENGTH;
+            if (!hasNote) {
+                updated[COLUMN_INDEX_NOTE] = null;
+            }
+        }
+        mRows.put(noteId, new Row(updated, hasNote));
+    }
+
+    /**
+     * 移除一条笔记，在修改提交之后调用
+     */
+    synchronized void remove(long noteId) {
+        mGeneration++;
+        mRows.remove(noteId);
+    }
+
+    /**
+     * 移除所有笔记，在可能修改多条笔记的操作提交之后调用
+     */
+    synchronized void clear() {
+        mGeneration++;
+        mRows.evictAll();
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "NoteCache{size=" + mRows.size() + "/" + mRows.maxSize() + " bytes, rows="
+                + mRows.snapshot().size() + ", hits=" + mHits.get() + ", misses="
+                + mMisses.get() + "}";
+    }
+
+    private static boolean containsNote(String[] projection) {
+        for (String column : projection) {
+            if (NotePad.Notes.COLUMN_NAME_NOTE.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -29,13 +29,22 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.support.v4.os.TraceCompat;
+import android.text.Editable;
+import android.text.Layout;
+import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.util.TypedValue;
@@ -48,13 +57,29 @@ import android.widget.EditText;
 import android.widget.Spinner;
 import android.widget.Toast;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This Activity handles "editing" a note, where editing is responding to
  * {@link Intent#ACTION_VIEW} (request to view data), edit a note
  * {@link Intent#ACTION_EDIT}, create a note {@link Intent#ACTION_INSERT}, or
  * create a new note from the current contents of the clipboard {@link Intent#ACTION_PASTE}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
+ * Edits are saved automatically a short while after the user stops typing, and at the latest a
+ * few seconds after the first unsaved edit. Saves are handed to {@link NoteWriter}, which writes
+ * them on a background thread.
+ *
+ * Notes longer than {@link #LARGE_NOTE_LENGTH} characters are opened in large-note mode: the
+ * content is streamed from the provider in chunks on a background thread and appended as it
+ * arrives, so the start of the note shows at once, and saves stream the text back without
+ * building one string of it.
+ *
+ * NOTE: Notice that the queries in this Activity are taking place on the UI thread.
  * This is not a good practice. It is only done here to make the code more readable. A real
  * application should use the {@link android.content.AsyncQueryHandler}
  * or {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
@@ -74,15 +99,21 @@ public class NoteEditor extends Activity {
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_NOTE, // 2
+            NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, // 2 - 内容单独读取
             NotePad.Notes.COLUMN_NAME_CREATE_DATE, // 3
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 4
             NotePad.Notes.COLUMN_NAME_CATEGORY // 5 - 分类列
     };
+    // 粘贴笔记时读取的列
+    private static final String[] PASTE_PROJECTION = new String[] {
+            NotePad.Notes.COLUMN_NAME_NOTE, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE // 1
+    };
+
     // 列索引常量
     private static final int COLUMN_INDEX_ID = 0;
     private static final int COLUMN_INDEX_TITLE = 1;
-    private static final int COLUMN_INDEX_NOTE = 2;
+    private static final int COLUMN_INDEX_NOTE_LENGTH = 2;
     private static final int COLUMN_INDEX_CREATE_DATE = 3;
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 4;
     private static final int COLUMN_INDEX_CATEGORY = 5;
@@ -102,13 +133,127 @@ public class NoteEditor extends Activity {
     private EditText mText;
     private String mOriginalContent;
 
+    // 最后一次写入数据库（或从数据库读出）的内容，保存时只写入与它们不同的列
+    private String mSavedNote;
+    private String mSavedTitle;
+    private String mSavedCategory;
+
+    // 最后一次读出或写入的修改时间。笔记的修改时间与它不同时，内容是在其他地方修改的
+    private long mSavedModified;
+
+    // 观察者收到这条笔记的变化后为true，下次onResume时重新查询
+    private boolean mNoteChanged;
+
+    // 交给NoteWriter、还没有收到变化通知的保存写入的修改时间，按写入顺序排列。
+    // 通知中的修改时间在其中时是自己的保存，不需要重新查询
+    private final List<Long> mWrittenModified = new ArrayList<Long>();
+
+    // 正在等待后台保存完成后重新查询
+    private boolean mReloadPending;
+
+    // 交给NoteWriter的保存次数，和开始等待时的次数比较，判断等待期间是否又保存过
+    private int mSaveCount;
+    private int mReloadSaveCount;
+
+    // 停止输入多久后自动保存
+    private static final long AUTOSAVE_IDLE_MS = 2000;
+
+    // 持续输入时，第一次未保存的修改最多等待多久就保存
+    private static final long AUTOSAVE_MAX_DELAY_MS = 10000;
+
+    // 第一次未保存的修改的时间，为0时没有未保存的修改
+    private long mFirstUnsavedEditTime;
+
+    // 内容超过这个字符数时按大笔记处理：在后台分段加载，保存时流式写入。这样的笔记在
+    // 提供者中分段存储，查询note列得不到内容
+    static final int LARGE_NOTE_LENGTH = NotePad.Notes.LARGE_NOTE_LENGTH;
+
+    // 大笔记每次追加到编辑框、每次保存时复制的最大字符数
+    private static final int LOAD_CHUNK_LENGTH = 16 * 1024;
+
+    // 当前笔记是否按大笔记处理。大笔记不保留内容的副本，mSavedNote和mOriginalContent为null
+    private boolean mLargeNote;
+
+    // 正在分段加载内容的任务。加载期间编辑框不可编辑，也不保存内容
+    private BodyLoadTask mBodyLoader;
+
+    // 大笔记的内容是否已经完整加载，加载完后是否又修改过
+    private boolean mBodyLoaded;
+    private boolean mBodyEdited;
+
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mAutosaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveNote();
+        }
+    };
+
+    // 监听mUri的变化。只做标记，等到onResume再查询，编辑器在前台时不打断输入
+    private final ContentObserver mNoteObserver = new ContentObserver(mHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            mNoteChanged = true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            // API 16以上的通知带有URI，忽略编辑器自己的保存
+            if (!isOwnChange(uri)) {
+                mNoteChanged = true;
+            }
+        }
+    };
+
+    // 后台保存完成后重新查询笔记
+    private final Runnable mReloadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCursor == null) {
+                mReloadPending = false;
+                return;
+            }
+            // 等待期间又有修改时，先保存，等这些保存也完成后再查询，不用旧内容覆盖编辑框
+            saveNote();
+            if (mSaveCount != mReloadSaveCount) {
+                mReloadSaveCount = mSaveCount;
+                NoteWriter.getInstance(NoteEditor.this).runAfterPendingWrites(this);
+                return;
+            }
+            mReloadPending = false;
+            reloadChangedNote();
+        }
+    };
+
+    // 后台保存失败时把笔记重新标记为未保存，下次自动保存或暂停时再写入
+    private final NoteWriter.OnWriteFailedListener mWriteFailedListener =
+            new NoteWriter.OnWriteFailedListener() {
+        @Override
+        public void onWriteFailed(Uri uri) {
+            if (mCursor == null || !uri.equals(mUri)) {
+                return;
+            }
+            markUnsaved();
+            Toast.makeText(NoteEditor.this, R.string.error_save, Toast.LENGTH_LONG).show();
+        }
+    };
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
+     * Only the lines inside the canvas clip bounds are drawn, with one drawLines call, so the
+     * cost of a frame does not grow with the length of the note.
      */
     public static class LinedEditText extends EditText {
         private Rect mRect;
         private Paint mPaint;
 
+        // 画布的裁剪范围，即需要重画的区域
+        private final Rect mClip = new Rect();
+
+        // drawLines的端点坐标，每条线4个值，不够时扩大，之后重复使用
+        private float[] mLinePoints = new float[0];
+
         // This constructor is used by LayoutInflater
         public LinedEditText(Context context, AttributeSet attrs) {
             super(context, attrs);
@@ -127,27 +272,40 @@ public class NoteEditor extends Activity {
         @Override
         protected void onDraw(Canvas canvas) {
 
-            // Gets the number of lines of text in the View.
-            int count = getLineCount();
-
-            // Gets the global Rect and Paint objects
-            Rect r = mRect;
-            Paint paint = mPaint;
-
-            /*
-             * Draws one line in the rectangle for every line of text in the EditText
-             */
-            for (int i = 0; i < count; i++) {
+            // Gets the layout of the text, and the part of the View that is being drawn.
+            Layout layout = getLayout();
+            if (layout != null && canvas.getClipBounds(mClip)) {
+
+                // Finds the lines of text that intersect the clip bounds. The canvas is
+                // already scrolled, so the bounds are in the same coordinates as the lines.
+                int top = getExtendedPaddingTop();
+                int first = layout.getLineForVertical(mClip.top - top);
+                int last = layout.getLineForVertical(mClip.bottom - top);
+                int count = last - first + 1;
+                if (mLinePoints.length < count * 4) {
+                    mLinePoints = new float[count * 4];
+                }
 
-                // Gets the baseline coordinates for the current line of text
-                int baseline = getLineBounds(i, r);
+                // Gets the global Rect and point array
+                Rect r = mRect;
+                float[] points = mLinePoints;
 
                 /*
-                 * Draws a line in the background from the left of the rectangle to the right,
-                 * at a vertical position one dip below the baseline, using the "paint" object
-                 * for details.
+                 * Collects one line for every visible line of text in the EditText, from the
+                 * left of its rectangle to the right, one dip below the baseline.
                  */
-                canvas.drawLine(r.left, baseline + 1, r.right, baseline + 1, paint);
+                for (int i = 0; i < count; i++) {
+
+                    // Gets the baseline coordinates for the current line of text
+                    int baseline = getLineBounds(first + i, r);
+                    points[i * 4] = r.left;
+                    points[i * 4 + 1] = baseline + 1;
+                    points[i * 4 + 2] = r.right;
+                    points[i * 4 + 3] = baseline + 1;
+                }
+
+                // Draws all of the lines at once, using the "paint" object for details.
+                canvas.drawLines(points, 0, count * 4, mPaint);
             }
 
             // Finishes up by calling the parent method
@@ -173,6 +331,93 @@ public class NoteEditor extends Activity {
 
         // ✅ 第三步：处理Intent和数据
         handleIntentAndData(savedInstanceState);
+
+        // 笔记在其他地方被修改时，回到前台后重新加载
+        if (mCursor != null) {
+            getContentResolver().registerContentObserver(mUri, false, mNoteObserver);
+            NoteWriter.getInstance(this).addOnWriteFailedListener(mWriteFailedListener);
+        }
+
+        // 加载完内容后再监听修改，安排自动保存
+        if (mText != null) {
+            mText.addTextChangedListener(new TextWatcher() {
+                @Override
+                public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+                }
+
+                @Override
+                public void onTextChanged(CharSequence s, int start, int before, int count) {
+                }
+
+                @Override
+                public void afterTextChanged(Editable s) {
+                    if (mBodyLoader != null) {
+                        // 分段加载追加的内容不是修改
+                        return;
+                    }
+                    if (mLargeNote) {
+                        mBodyEdited = true;
+                    }
+                    scheduleAutosave();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        getContentResolver().unregisterContentObserver(mNoteObserver);
+        NoteWriter.getInstance(this).removeOnWriteFailedListener(mWriteFailedListener);
+        if (mCursor != null) {
+            mCursor.close();
+            mCursor = null;
+        }
+        if (mBodyLoader != null) {
+            mBodyLoader.cancel(true);
+            mBodyLoader = null;
+        }
+    }
+
+    /**
+     * 安排一次自动保存：停止输入AUTOSAVE_IDLE_MS后保存，持续输入时最晚在第一次修改
+     * AUTOSAVE_MAX_DELAY_MS后保存。连续的修改合并为一次保存。
+     */
+    private void scheduleAutosave() {
+        long now = SystemClock.uptimeMillis();
+        if (mFirstUnsavedEditTime == 0) {
+            mFirstUnsavedEditTime = now;
+        }
+        long delay = Math.min(AUTOSAVE_IDLE_MS,
+                Math.max(0, mFirstUnsavedEditTime + AUTOSAVE_MAX_DELAY_MS - now));
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        mHandler.postDelayed(mAutosaveRunnable, delay);
+    }
+
+    /**
+     * 保存编辑框的当前内容。没有修改时什么也不写。
+     */
+    private void saveNote() {
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        mFirstUnsavedEditTime = 0;
+        if (mCursor == null || mUri == null) {
+            return;
+        }
+        if (isDirty()) {
+            writeNote();
+        }
+    }
+
+    /**
+     * 写入编辑框的当前内容。大笔记按段复制后流式写入，不把整个内容转换成字符串。
+     */
+    private void writeNote() {
+        if (mLargeNote) {
+            updateLargeNote();
+        } else {
+            updateNote(mText.getText().toString(), null);
+        }
     }
     /**
      * 应用编辑器样式
@@ -253,20 +498,25 @@ public class NoteEditor extends Activity {
      * 处理编辑操作
      */
     private void handleEditAction(Intent intent) {
-        mState = STATE_EDIT;
-        mUri = intent.getData();
-
-        // 查询并显示笔记数据
-        mCursor = managedQuery(mUri, PROJECTION, null, null, null);
-        if (mCursor != null && mCursor.moveToFirst()) {
-            // 加载内容
-            String note = mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE));
-            mText.setText(note);
-            mOriginalContent = note;
+        TraceCompat.beginSection("NoteEditor.handleEditAction");
+        try {
+            mState = STATE_EDIT;
+            mUri = intent.getData();
+
+            // 查询并显示笔记数据
+            mCursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+            if (mCursor != null && mCursor.moveToFirst()) {
+                // 加载分类
+                String category = mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY));
+                setCategorySelection(category);
+
+                rememberSavedState(mCursor);
 
-            // 加载分类
-            String category = mCursor.getString(mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_CATEGORY));
-            setCategorySelection(category);
+                // 加载内容
+                loadNote(false);
+            }
+        } finally {
+            TraceCompat.endSection();
         }
     }
 
@@ -286,9 +536,10 @@ public class NoteEditor extends Activity {
         setResult(RESULT_OK, (new Intent()).setAction(mUri.toString()));
         // 新建笔记时也需要查询以获取Cursor
         try {
-            mCursor = managedQuery(mUri, PROJECTION, null, null, null);
-            if (mCursor != null) {
-                mCursor.moveToFirst();
+            mCursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+            if (mCursor != null && mCursor.moveToFirst()) {
+                rememberSavedState(mCursor);
+                loadNote(false);
             }
         } catch (Exception e) {
             Log.e(TAG, "新建笔记查询失败: " + e.getMessage());
@@ -296,6 +547,180 @@ public class NoteEditor extends Activity {
         }
     }
 
+    /**
+     * 记录数据库中笔记的标题、分类和修改时间，作为判断是否需要保存的基准。
+     * 内容的基准由loadNote记录
+     */
+    private void rememberSavedState(Cursor cursor) {
+        mSavedTitle = cursor.getString(COLUMN_INDEX_TITLE);
+        mSavedCategory = cursor.getString(COLUMN_INDEX_CATEGORY);
+        mSavedModified = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
+    }
+
+    /**
+     * 重新查询笔记，代替已经弃用的Cursor.requery()。笔记已经不存在时保留原来的Cursor。
+     *
+     * @return 是否查询到了笔记
+     */
+    private boolean requeryNote() {
+        Cursor cursor = getContentResolver().query(mUri, PROJECTION, null, null, null);
+        if (cursor == null || !cursor.moveToFirst()) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return false;
+        }
+        mCursor.close();
+        mCursor = cursor;
+        return true;
+    }
+
+    /**
+     * 清除保存基准，下次保存时重新写入内容和分类。不知道失败的是哪一次写入，
+     * 所以按所有列都没有保存处理
+     */
+    private void markUnsaved() {
+        if (mLargeNote) {
+            mBodyEdited = true;
+        } else {
+            mSavedNote = null;
+        }
+        mSavedCategory = null;
+        if (mState == STATE_INSERT) {
+            // 编辑已有笔记时不写标题，窗口标题也用它显示
+            mSavedTitle = null;
+        }
+    }
+
+    /**
+     * 编辑框或分类与数据库中的内容不同时返回true
+     */
+    private boolean isDirty() {
+        boolean noteChanged = mLargeNote
+                ? mBodyEdited
+                : !TextUtils.equals(mText.getText(), mSavedNote);
+        return noteChanged || !TextUtils.equals(getSelectedCategory(), mSavedCategory);
+    }
+
+    /**
+     * 把数据库中的内容显示到编辑框。普通笔记一次读出；大笔记在后台分段读取，开头的一段
+     * 先显示出来。已经加载过的大笔记不再重新读取，编辑框中的内容就是最后保存的内容。
+     *
+     * @param keepState 是否保持光标位置
+     */
+    private void loadNote(boolean keepState) {
+        mLargeNote = mCursor.getLong(COLUMN_INDEX_NOTE_LENGTH) > LARGE_NOTE_LENGTH;
+        if (mLargeNote) {
+            if (mBodyLoader == null && !mBodyLoaded) {
+                startBodyLoad();
+            }
+            return;
+        }
+        mBodyLoaded = false;
+
+        String note = queryNote();
+        if (keepState) {
+            mText.setTextKeepState(note);
+        } else {
+            mText.setText(note);
+        }
+        mSavedNote = note;
+
+        // Stores the original note text, to allow the user to revert changes.
+        if (mOriginalContent == null) {
+            mOriginalContent = note;
+        }
+    }
+
+    /**
+     * 读取普通笔记的内容
+     */
+    private String queryNote() {
+        Cursor c = getContentResolver().query(mUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        if (c == null) {
+            return "";
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : "";
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 开始在后台分段加载大笔记，加载完成前编辑框不可编辑
+     */
+    private void startBodyLoad() {
+        mSavedNote = null;
+        mOriginalContent = null;
+        mBodyEdited = false;
+        mBodyLoader = new BodyLoadTask();
+        mText.setText("");
+        mText.setEnabled(false);
+        mBodyLoader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, mUri);
+    }
+
+    private void onBodyLoaded(boolean loaded, long elapsed) {
+        mBodyLoader = null;
+        if (!loaded) {
+            // 内容不完整，保持不可编辑，保存时不会截断笔记
+            Toast.makeText(this, R.string.error_message, Toast.LENGTH_LONG).show();
+            return;
+        }
+        mBodyLoaded = true;
+        mBodyEdited = false;
+        mText.setEnabled(true);
+        Log.d(TAG, "Loaded " + mText.length() + " characters in " + elapsed + " ms");
+    }
+
+    /**
+     * 在后台线程按段读取大笔记的内容，每读到一段就追加到编辑框，开头的部分最先显示出来
+     */
+    private class BodyLoadTask extends AsyncTask<Uri, String, Boolean> {
+        private final long mStart = SystemClock.elapsedRealtime();
+
+        @Override
+        protected Boolean doInBackground(Uri... uris) {
+            Reader reader = null;
+            try {
+                InputStream in = getContentResolver().openInputStream(uris[0]);
+                reader = new InputStreamReader(in, "UTF-8");
+                char[] buffer = new char[LOAD_CHUNK_LENGTH];
+                int count;
+                while (!isCancelled() && (count = reader.read(buffer)) >= 0) {
+                    publishProgress(new String(buffer, 0, count));
+                }
+                return !isCancelled();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to load " + uris[0], e);
+                return false;
+            } finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                } catch (IOException e) {
+                    // 忽略关闭异常
+                }
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(String... chunks) {
+            if (mBodyLoader == this) {
+                mText.append(chunks[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Boolean loaded) {
+            if (mBodyLoader == this) {
+                onBodyLoaded(loaded, SystemClock.elapsedRealtime() - mStart);
+            }
+        }
+    }
+
     /**
      * 设置分类选择
      */
@@ -327,68 +752,110 @@ public class NoteEditor extends Activity {
      * This method is called when the Activity is about to come to the foreground. This happens
      * when the Activity comes to the top of the task stack, OR when it is first starting.
      *
-     * Moves to the first note in the list, sets an appropriate title for the action chosen by
-     * the user, puts the note contents into the TextView, and saves the original text as a
-     * backup.
+     * Sets an appropriate title for the action chosen by the user. The note is read again only
+     * if the observer saw it change while the Activity was in the background, and its contents
+     * are put into the TextView again only if it was changed somewhere else.
      */
     @Override
     protected void onResume() {
         super.onResume();
+        TraceCompat.beginSection("NoteEditor.onResume");
+        try {
+            /*
+             * mCursor is initialized, since onCreate() always precedes onResume for any running
+             * process. This tests that it's not null, since it should always contain data.
+             */
+            if (mCursor != null) {
+                /*
+                 * Requeries only if something changed while paused (such as the title). The
+                 * notifications of the editor's own saves are ignored by the observer. Other
+                 * changes are read once the editor's queued saves are written, without blocking
+                 * the UI thread, so the old content is never read back into the editor.
+                 */
+                if (mNoteChanged && !mReloadPending) {
+                    mNoteChanged = false;
+                    mReloadPending = true;
+                    mReloadSaveCount = mSaveCount;
+                    NoteWriter.getInstance(this).runAfterPendingWrites(mReloadRunnable);
+                }
 
-        /*
-         * mCursor is initialized, since onCreate() always precedes onResume for any running
-         * process. This tests that it's not null, since it should always contain data.
-         */
-        if (mCursor != null) {
-            // Requery in case something changed while paused (such as the title)
-            mCursor.requery();
+                updateWindowTitle();
 
-            /* Moves to the first record. Always call moveToFirst() before accessing data in
-             * a Cursor for the first time. The semantics of using a Cursor are that when it is
-             * created, its internal index is pointing to a "place" immediately before the first
-             * record.
-             */
-            mCursor.moveToFirst();
-
-            // Modifies the window title for the Activity according to the current Activity state.
-            if (mState == STATE_EDIT) {
-                // Set the title of the Activity to include the note title
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-                // Sets the title to "create" for inserts
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
+                /*
+                 * Something is wrong. The Cursor should always contain data. Report an error in the
+                 * note.
+                 */
+            } else {
+                setTitle(getText(R.string.error_title));
+                mText.setText(getText(R.string.error_message));
             }
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
 
-            /*
-             * onResume() may have been called after the Activity lost focus (was paused).
-             * The user was either editing or creating a note when the Activity paused.
-             * The Activity should re-display the text that had been retrieved previously, but
-             * it should not move the cursor. This helps the user to continue editing or entering.
-             */
+    /**
+     * Reads the note again after it was changed while the Activity was paused. The saves of the
+     * editor itself are recognized by the modification date that the editor wrote.
+     */
+    private void reloadChangedNote() {
+        if (!requeryNote()) {
+            return;
+        }
+        boolean changedElsewhere =
+                mCursor.getLong(COLUMN_INDEX_MODIFICATION_DATE) != mSavedModified;
+        rememberSavedState(mCursor);
 
-            // Gets the note text from the Cursor and puts it in the TextView, but doesn't change
-            // the text cursor's position.
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-            String note = mCursor.getString(colNoteIndex);
-            mText.setTextKeepState(note);
+        /*
+         * onResume() may have been called after the Activity lost focus (was paused). The note
+         * was changed somewhere else, so the Activity re-displays its text, but it does not move
+         * the cursor. This helps the user to continue editing.
+         */
+        if (changedElsewhere) {
+            setCategorySelection(mSavedCategory);
+            mBodyLoaded = false;
+            loadNote(true);
+        }
+        updateWindowTitle();
+    }
 
-            // Stores the original note text, to allow the user to revert changes.
-            if (mOriginalContent == null) {
-                mOriginalContent = note;
-            }
+    /**
+     * Modifies the window title for the Activity according to the current Activity state.
+     */
+    private void updateWindowTitle() {
+        if (mState == STATE_EDIT) {
+            // Set the title of the Activity to include the note title
+            Resources res = getResources();
+            String text = String.format(res.getString(R.string.title_edit), mSavedTitle);
+            setTitle(text);
+            // Sets the title to "create" for inserts
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
+    }
 
-            /*
-             * Something is wrong. The Cursor should always contain data. Report an error in the
-             * note.
-             */
-        } else {
-            setTitle(getText(R.string.error_title));
-            mText.setText(getText(R.string.error_message));
+    /**
+     * 变化通知是否来自编辑器自己的保存：通知带有修改时间，而且是编辑器写入的。
+     * 合并的保存只通知最后一次，之前写入的时间一并移除
+     */
+    private boolean isOwnChange(Uri uri) {
+        String modified = uri != null
+                ? uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGED_MODIFIED)
+                : null;
+        if (modified == null) {
+            return false;
+        }
+        int index;
+        try {
+            index = mWrittenModified.indexOf(Long.parseLong(modified));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (index < 0) {
+            return false;
         }
+        mWrittenModified.subList(0, index + 1).clear();
+        return true;
     }
 
     /**
@@ -422,6 +889,10 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
+        // 暂停时立即保存，不再等待自动保存
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        mFirstUnsavedEditTime = 0;
+
         /*
          * Tests to see that the query operation didn't fail (see onCreate()). The Cursor object
          * will exist, even if no records were returned, unless the query failed because of some
@@ -430,9 +901,8 @@ public class NoteEditor extends Activity {
          */
         if (mCursor != null) {
 
-            // Get the current note text.
-            String text = mText.getText().toString();
-            int length = text.length();
+            // 大笔记加载完成之前不能根据编辑框判断笔记是否为空
+            boolean empty = (!mLargeNote || mBodyLoaded) && mText.length() == 0;
 
             /*
              * If the Activity is in the midst of finishing and there is no text in the current
@@ -440,7 +910,7 @@ public class NoteEditor extends Activity {
              * even if the note was being edited, the assumption being that the user wanted to
              * "clear out" (delete) the note.
              */
-            if (isFinishing() && (length == 0)) {
+            if (isFinishing() && empty) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
 
@@ -451,9 +921,12 @@ public class NoteEditor extends Activity {
                  * that is being edited.
                  */
             } else if (mState == STATE_EDIT) {
-                // Creates a map to contain the new values for the columns
-                updateNote(text, null);
+                // 没有修改过的笔记不写数据库
+                if (isDirty()) {
+                    writeNote();
+                }
             } else if (mState == STATE_INSERT) {
+                String text = mText.getText().toString();
                 updateNote(text, text);
                 mState = STATE_EDIT;
             }
@@ -513,25 +986,11 @@ public class NoteEditor extends Activity {
 
         // 修复2：添加异常处理
         try {
-            // 检查笔记是否改变，启用/禁用撤销选项
-            int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-
-            // 修复3：检查列索引是否有效
-            if (colNoteIndex < 0) {
-                Log.e(TAG, "未找到笔记列");
-                return true;
-            }
-
-            String savedNote = mCursor.getString(colNoteIndex);
-            String currentNote = mText.getText().toString();
-
+            // 检查笔记是否改变，启用/禁用撤销选项。大笔记不保留原来的内容，不能撤销
             MenuItem revertItem = menu.findItem(R.id.menu_revert);
             if (revertItem != null) {
-                if (savedNote != null && savedNote.equals(currentNote)) {
-                    revertItem.setVisible(false);
-                } else {
-                    revertItem.setVisible(true);
-                }
+                revertItem.setVisible(!mLargeNote
+                        && !TextUtils.equals(mText.getText(), mSavedNote));
             }
         } catch (Exception e) {
             Log.e(TAG, "准备菜单失败: " + e.getMessage());
@@ -559,8 +1018,7 @@ public class NoteEditor extends Activity {
         // Handle all of the possible menu actions.
         int id = item.getItemId();
         if(id== R.id.menu_save) {
-            String text = mText.getText().toString();
-            updateNote(text, null);
+            writeNote();
             finish();
         } else if (id == R.id.menu_delete) {
             deleteNote();
@@ -637,7 +1095,7 @@ public class NoteEditor extends Activity {
                 // The clipboard holds a reference to data with a note MIME type. This copies it.
                 Cursor orig = cr.query(
                         uri,            // URI for the content provider
-                        PROJECTION,     // Get the columns referred to in the projection
+                        PASTE_PROJECTION, // Get the columns referred to in the projection
                         null,           // No selection variables
                         null,           // No selection variables, so no criteria are needed
                         null            // Use the default sort order
@@ -647,10 +1105,8 @@ public class NoteEditor extends Activity {
                 // (moveToFirst() returns true), then this gets the note data from it.
                 if (orig != null) {
                     if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
-                        title = orig.getString(colTitleIndex);
+                        text = orig.getString(0);
+                        title = orig.getString(1);
                     }
 
                     // Closes the cursor.
@@ -664,76 +1120,148 @@ public class NoteEditor extends Activity {
                 text = item.coerceToText(this).toString();
             }
 
-            // Updates the current note with the retrieved title and text.
+            // Updates the current note with the retrieved title and text, and shows the text.
+            mText.setText(text);
             updateNote(text, title);
         }
     }
 //END_INCLUDE(paste)
 
     /**
-     * Replaces the current note contents with the text and title provided as arguments.
+     * Replaces the current note contents with the text and title provided as arguments. Only the
+     * columns that differ from the last saved state are written, and nothing is written at all
+     * if the note is unchanged.
      * @param text The new note contents to use.
      * @param title The new note title to use
      */
     private final void updateNote(String text, String title) {
+        TraceCompat.beginSection("NoteEditor.updateNote");
+        try {
+            // Sets up a map to contain values to be updated in the provider.
+            ContentValues values = new ContentValues();
+            String category = getSelectedCategory();
+            if (!category.equals(mSavedCategory)) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+            }
 
-        // Sets up a map to contain values to be updated in the provider.
-        ContentValues values = new ContentValues();
-        long now = System.currentTimeMillis();
-        values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, getSelectedCategory());
-        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
-
-        // If the action is to insert a new note, this creates an initial title for it.
-        if (mState == STATE_INSERT) {
+            // If the action is to insert a new note, this creates an initial title for it.
+            if (mState == STATE_INSERT) {
 
-            // If no title was provided as an argument, create one from the note text.
-            if (title == null) {
+                // If no title was provided as an argument, create one from the note text.
+                if (title == null) {
 
-                // Get the note's length
-                int length = text.length();
+                    // Get the note's length
+                    int length = text.length();
 
-                // Sets the title by getting a substring of the text that is 31 characters long
-                // or the number of characters in the note plus one, whichever is smaller.
-                title = text.substring(0, Math.min(30, length));
+                    // Sets the title by getting a substring of the text that is 31 characters long
+                    // or the number of characters in the note plus one, whichever is smaller.
+                    title = text.substring(0, Math.min(30, length));
 
-                // If the resulting length is more than 30 characters, chops off any
-                // trailing spaces
-                if (length > 30) {
-                    int lastSpace = title.lastIndexOf(' ');
-                    if (lastSpace > 0) {
-                        title = title.substring(0, lastSpace);
+                    // If the resulting length is more than 30 characters, chops off any
+                    // trailing spaces
+                    if (length > 30) {
+                        int lastSpace = title.lastIndexOf(' ');
+                        if (lastSpace > 0) {
+                            title = title.substring(0, lastSpace);
+                        }
                     }
                 }
             }
-            // In the values map, sets the value of the title
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
-        } else if (title != null) {
-            // In the values map, sets the value of the title
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
-        }
+            if (title != null && !title.equals(mSavedTitle)) {
+                // In the values map, sets the value of the title
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+            }
 
-        // This puts the desired notes text into the map.
-        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            // This puts the desired notes text into the map, if it changed.
+            if (!text.equals(mSavedNote)) {
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+            }
 
-        /*
-         * Updates the provider with the new values in the map. The ListView is updated
-         * automatically. The provider sets this up by setting the notification URI for
-         * query Cursor objects to the incoming URI. The content resolver is thus
-         * automatically notified when the Cursor for the URI changes, and the UI is
-         * updated.
-         * Note: This is being done on the UI thread. It will block the thread until the
-         * update completes. In a sample app, going against a simple provider based on a
-         * local database, the block will be momentary, but in a real app you should use
-         * android.content.AsyncQueryHandler or android.os.AsyncTask.
-         */
-        getContentResolver().update(
-                mUri,    // The URI for the record to update.
-                values,  // The map of column names and new values to apply to them.
-                null,    // No selection criteria are used, so no where columns are necessary.
-                null     // No where columns are used, so no where arguments are necessary.
-        );
+            // 内容没有变化时不写数据库，也不会通知列表重新查询
+            if (values.size() == 0) {
+                return;
+            }
+            mSavedModified = System.currentTimeMillis();
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, mSavedModified);
+            mWrittenModified.add(mSavedModified);
+            mSaveCount++;
 
+            /*
+             * Updates the provider with the new values in the map. The ListView is updated
+             * automatically. The provider sets this up by setting the notification URI for
+             * query Cursor objects to the incoming URI. The content resolver is thus
+             * automatically notified when the Cursor for the URI changes, and the UI is
+             * updated.
+             * The update is written on the NoteWriter thread, so a long note does not block the
+             * UI thread. Updates that are still queued are merged with this one.
+             */
+            NoteWriter.getInstance(this).update(mUri, values);
 
+            // 更新保存基准，下次只写入之后的修改
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                mSavedNote = text;
+            }
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+                mSavedTitle = title;
+            }
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+                mSavedCategory = category;
+            }
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * 保存大笔记：内容按段复制出来，由NoteWriter通过管道流式写入。加载完成前只保存分类。
+     */
+    private void updateLargeNote() {
+        TraceCompat.beginSection("NoteEditor.updateLargeNote");
+        try {
+            ContentValues values = new ContentValues();
+            String category = getSelectedCategory();
+            if (!category.equals(mSavedCategory)) {
+                values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+            }
+            boolean writeBody = mBodyEdited && mBodyLoader == null;
+            if (!writeBody && values.size() == 0) {
+                return;
+            }
+            mSavedModified = System.currentTimeMillis();
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, mSavedModified);
+            mWrittenModified.add(mSavedModified);
+            mSaveCount++;
+
+            if (writeBody) {
+                NoteWriter.getInstance(this).writeBody(mUri, copyText(mText.getText()), values);
+                mBodyEdited = false;
+            } else {
+                NoteWriter.getInstance(this).update(mUri, values);
+            }
+            mSavedCategory = category;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * 把编辑框的内容按段复制出来，之后的编辑不影响复制出的内容。代理对不会分在两段中。
+     */
+    private static List<char[]> copyText(Editable text) {
+        int length = text.length();
+        List<char[]> chunks = new ArrayList<char[]>(length / LOAD_CHUNK_LENGTH + 1);
+        int start = 0;
+        while (start < length) {
+            int end = Math.min(length, start + LOAD_CHUNK_LENGTH);
+            if (end < length && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            char[] chunk = new char[end - start];
+            text.getChars(start, end, chunk, 0);
+            chunks.add(chunk);
+            start = end;
+        }
+        return chunks;
     }
 
     /**
@@ -742,13 +1270,15 @@ public class NoteEditor extends Activity {
      */
     private final void cancelNote() {
         if (mCursor != null) {
-            if (mState == STATE_EDIT) {
+            if (mState == STATE_EDIT && !mLargeNote) {
                 // Put the original note text back into the database
                 mCursor.close();
                 mCursor = null;
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_NOTE, mOriginalContent);
-                getContentResolver().update(mUri, values, null, null);
+                // 和自动保存走同一个写线程，排在它们后面执行
+                NoteWriter.getInstance(this).update(mUri, values);
+                mSavedNote = mOriginalContent;
             } else if (mState == STATE_INSERT) {
                 // We inserted an empty note, make sure to delete it
                 deleteNote();
@@ -765,7 +1295,8 @@ public class NoteEditor extends Activity {
         if (mCursor != null) {
             mCursor.close();
             mCursor = null;
-            getContentResolver().delete(mUri, null, null);
+            mHandler.removeCallbacks(mAutosaveRunnable);
+            NoteWriter.getInstance(this).delete(mUri);
             mText.setText("");
         }
     }
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProvider;
+import android.content.ContentProvider.PipeDataWriter;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.util.JsonWriter;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes the notes of {@link NotePad.Notes#CONTENT_URI} into an export pipe, as JSON Lines or
+ * CSV. It runs on the pipe thread started by {@link ContentProvider#openPipeHelper}.
+ *
+ * The notes are read in chunks of {@link #CHUNK_SIZE} rows, each chunk a new query that starts
+ * after the last exported _ID, and every cursor is closed before the next one is opened. Rows
+ * are written through a buffered UTF-8 encoder as they are read, so exporting any number of
+ * notes takes the same amount of memory. Notes that the provider stores in pieces read null in
+ * the query; their content is read separately, one note at a time.
+ */
+final class NoteExporter implements PipeDataWriter<Bundle> {
+    private static final String TAG = "NoteExporter";
+
+    // 每次查询的笔记数
+    static final int CHUNK_SIZE = 500;
+
+    // 写入管道前缓冲的字节数
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The exported columns, in the order they are written
+     */
+    static final String[] COLUMNS = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_NOTE, // 2
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE, // 3
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 4
+            NotePad.Notes.COLUMN_NAME_CATEGORY // 5
+    };
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_NOTE = 2;
+
+    // 按_ID升序导出，导出过程中修改的笔记不会因为修改时间变化而漏掉或重复
+    private static final String CHUNK_SORT_ORDER = NotePad.Notes._ID + " ASC";
+
+    private final NotePadProvider mProvider;
+
+    private final ProviderStats mStats;
+
+    NoteExporter(NotePadProvider provider, ProviderStats stats) {
+        mProvider = provider;
+        mStats = stats;
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+            Bundle opts, Bundle args) {
+        String selection = opts != null
+                ? opts.getString(NotePad.Notes.EXPORT_OPTION_SELECTION) : null;
+        String[] selectionArgs = opts != null
+                ? opts.getStringArray(NotePad.Notes.EXPORT_OPTION_SELECTION_ARGS) : null;
+        boolean csv = NotePad.Notes.EXPORT_TYPE_CSV.equals(mimeType);
+
+        long start = SystemClock.elapsedRealtime();
+        long startNanos = System.nanoTime();
+        CountingOutputStream counter =
+                new CountingOutputStream(new FileOutputStream(output.getFileDescriptor()));
+        Writer writer = null;
+        int count = 0;
+        try {
+            writer = new OutputStreamWriter(new BufferedOutputStream(counter, BUFFER_SIZE),
+                    "UTF-8");
+            count = writeNotes(writer, csv, selection, selectionArgs);
+            writer.flush();
+        } catch (IOException e) {
+            // 读取方提前关闭了管道
+            Log.w(TAG, "Export of " + uri + " stopped after " + count + " notes", e);
+        } finally {
+            try {
+                if (writer != null) {
+                    writer.close();
+                } else {
+                    counter.close();
+                }
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, "Exported " + count + " notes as " + mimeType + ": " + counter.getCount()
+                + " bytes in " + elapsed + " ms, " + (counter.getCount() * 1000 / elapsed)
+                + " bytes/s");
+        mStats.record(ProviderStats.OP_STREAM, NotePadProvider.NOTES, startNanos, count,
+                counter.getCount());
+    }
+
+    /**
+     * 分批查询笔记并逐行写入
+     *
+     * @return 写入的笔记数
+     */
+    private int writeNotes(Writer writer, boolean csv, String selection, String[] selectionArgs)
+            throws IOException {
+        if (csv) {
+            writeCsvHeader(writer);
+        }
+
+        int count = 0;
+        long lastId = -1;
+        Cursor cursor;
+        while ((cursor = queryChunk(lastId, selection, selectionArgs)) != null) {
+            try {
+                if (!cursor.moveToFirst()) {
+                    break;
+                }
+                do {
+                    String note = readNote(cursor);
+                    if (csv) {
+                        writeCsvRow(writer, cursor, note);
+                    } else {
+                        writeJsonRow(writer, cursor, note);
+                        writer.write('\n');
+                    }
+                    count++;
+                } while (cursor.moveToNext());
+
+                cursor.moveToLast();
+                lastId = cursor.getLong(COLUMN_INDEX_ID);
+                if (cursor.getCount() < CHUNK_SIZE) {
+                    break;
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 写一行JSON对象。android.util.JsonWriter即使在宽松模式下也只允许一个顶层值，
+     * 所以每行用一个新的JsonWriter。它直接写入writer，不缓冲，用完不关闭writer
+     */
+    private static void writeJsonRow(Writer writer, Cursor cursor, String note)
+            throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name(COLUMNS[0]).value(cursor.getLong(0));
+        json.name(COLUMNS[1]).value(cursor.getString(1));
+        json.name(COLUMNS[2]).value(note);
+        json.name(COLUMNS[3]).value(cursor.getLong(3));
+        json.name(COLUMNS[4]).value(cursor.getLong(4));
+        json.name(COLUMNS[5]).value(cursor.getString(5));
+        json.endObject();
+    }
+
+    /**
+     * 按RFC 4180写CSV，第一行是列名
+     */
+    private static void writeCsvHeader(Writer writer) throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(COLUMNS[i]);
+        }
+        writer.write("\r\n");
+    }
+
+    private static void writeCsvRow(Writer writer, Cursor cursor, String note)
+            throws IOException {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writeCsvField(writer, i == COLUMN_INDEX_NOTE ? note : cursor.getString(i));
+        }
+        writer.write("\r\n");
+    }
+
+    /**
+     * 写一个CSV字段。含有逗号、引号或换行的字段用引号括起来，其中的引号写两次。
+     */
+    static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+
+        writer.write('"');
+        int start = 0;
+        int end;
+        while ((end = value.indexOf('"', start)) >= 0) {
+            writer.write(value, start, end + 1 - start);
+            writer.write('"');
+            start = end + 1;
+        }
+        writer.write(value, start, value.length() - start);
+        writer.write('"');
+    }
+
+    /**
+     * 读取当前行的内容。分段存储的笔记在查询中内容为null，单独读出完整的内容
+     */
+    private String readNote(Cursor cursor) {
+        if (!cursor.isNull(COLUMN_INDEX_NOTE)) {
+            return cursor.getString(COLUMN_INDEX_NOTE);
+        }
+        return mProvider.readNote(cursor.getLong(COLUMN_INDEX_ID));
+    }
+
+    /**
+     * 查询_ID大于lastId的下一批笔记
+     */
+    private Cursor queryChunk(long lastId, String selection, String[] selectionArgs) {
+        Uri uri = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                        Integer.toString(CHUNK_SIZE))
+                .build();
+
+        String chunkSelection = NotePad.Notes._ID + " > ?";
+        String[] chunkArgs = new String[] { Long.toString(lastId) };
+        if (selection != null) {
+            chunkSelection = chunkSelection + " AND (" + selection + ")";
+            if (selectionArgs != null) {
+                String[] args = new String[selectionArgs.length + 1];
+                args[0] = chunkArgs[0];
+                System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+                chunkArgs = args;
+            }
+        }
+        return mProvider.query(uri, COLUMNS, chunkSelection, chunkArgs, CHUNK_SORT_ORDER);
+    }
+
+    /**
+     * 统计写入管道的字节数
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            // FilterOutputStream默认逐字节写入，这里直接整块写
+            out.write(buffer, offset, length);
+            mCount += length;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+}
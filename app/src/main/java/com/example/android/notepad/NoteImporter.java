@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.SQLException;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads notes from a JSON Lines or CSV stream, in the format written by {@link NoteExporter}, and
+ * inserts them through {@link ContentProvider#bulkInsert} in batches of {@link #BATCH_SIZE}. Each
+ * batch is one transaction, and only one batch of rows is held in memory at a time.
+ *
+ * Invalid rows are counted and skipped. If reading the stream or inserting a batch fails, the
+ * import stops, and the result tells how many records were committed, so the caller can resume
+ * from there with {@link NotePad.Notes#IMPORT_EXTRA_SKIP_RECORDS}.
+ */
+final class NoteImporter {
+    private static final String TAG = "NoteImporter";
+
+    // 每个事务插入的笔记数
+    static final int BATCH_SIZE = 500;
+
+    private final ContentProvider mProvider;
+
+    // 统计，都从流的开头计数，records包含跳过的记录
+    private int mImported;
+    private int mRejected;
+    private int mRecords;
+
+    NoteImporter(ContentProvider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * 按METHOD_IMPORT的参数导入，返回结果Bundle
+     */
+    Bundle importNotes(Bundle extras) {
+        ParcelFileDescriptor file = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.IMPORT_EXTRA_FILE)
+                : null;
+        if (file == null) {
+            throw new IllegalArgumentException("Missing " + NotePad.Notes.IMPORT_EXTRA_FILE);
+        }
+        String mimeType = extras.getString(NotePad.Notes.IMPORT_EXTRA_MIME_TYPE);
+        boolean csv = NotePad.Notes.EXPORT_TYPE_CSV.equals(mimeType);
+        if (!csv && !NotePad.Notes.EXPORT_TYPE_JSON_LINES.equals(mimeType)) {
+            throw new IllegalArgumentException("Unsupported import type " + mimeType);
+        }
+        int skip = extras.getInt(NotePad.Notes.IMPORT_EXTRA_SKIP_RECORDS, 0);
+        ResultReceiver progress = extras.getParcelable(NotePad.Notes.IMPORT_EXTRA_PROGRESS);
+
+        long start = SystemClock.elapsedRealtime();
+        String error = null;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new ParcelFileDescriptor.AutoCloseInputStream(file), "UTF-8"));
+            if (csv) {
+                importCsv(reader, skip, progress);
+            } else {
+                importJsonLines(reader, skip, progress);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Import stopped after " + mRecords + " records", e);
+            error = e.toString();
+        } catch (SQLException e) {
+            // 出错的一批已经回滚
+            Log.w(TAG, "Import stopped after " + mRecords + " records", e);
+            error = e.toString();
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+
+        long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.i(TAG, "Imported " + mImported + " notes, rejected " + mRejected + " in " + elapsed
+                + " ms, " + (mImported * 1000L / elapsed) + " notes/s");
+
+        Bundle result = buildResult();
+        if (error != null) {
+            result.putString(NotePad.Notes.IMPORT_RESULT_ERROR, error);
+        }
+        return result;
+    }
+
+    private void importJsonLines(BufferedReader reader, int skip, ResultReceiver progress)
+            throws IOException {
+        List<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        int pending = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (TextUtils.isEmpty(line.trim())) {
+                continue;
+            }
+            pending++;
+            if (mRecords + pending <= skip) {
+                continue;
+            }
+
+            ContentValues values = null;
+            try {
+                values = parseJson(new JSONObject(line));
+            } catch (JSONException e) {
+                // 无效的行，跳过
+            }
+            if (values != null) {
+                batch.add(values);
+            } else {
+                mRejected++;
+            }
+
+            if (batch.size() == BATCH_SIZE) {
+                commit(batch, pending, progress);
+                pending = 0;
+            }
+        }
+        commit(batch, pending, progress);
+    }
+
+    private void importCsv(BufferedReader reader, int skip, ResultReceiver progress)
+            throws IOException {
+        List<String> header = readCsvRecord(reader);
+        if (header == null) {
+            return;
+        }
+        int titleIndex = header.indexOf(NotePad.Notes.COLUMN_NAME_TITLE);
+        int noteIndex = header.indexOf(NotePad.Notes.COLUMN_NAME_NOTE);
+        int createdIndex = header.indexOf(NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+        int modifiedIndex = header.indexOf(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        int categoryIndex = header.indexOf(NotePad.Notes.COLUMN_NAME_CATEGORY);
+        if (titleIndex < 0 && noteIndex < 0) {
+            throw new IOException("CSV header has neither a title nor a note column");
+        }
+
+        List<ContentValues> batch = new ArrayList<ContentValues>(BATCH_SIZE);
+        int pending = 0;
+        List<String> record;
+        while ((record = readCsvRecord(reader)) != null) {
+            pending++;
+            if (mRecords + pending <= skip) {
+                continue;
+            }
+
+            ContentValues values = validate(
+                    getField(record, titleIndex),
+                    getField(record, noteIndex),
+                    getField(record, createdIndex),
+                    getField(record, modifiedIndex),
+                    getField(record, categoryIndex));
+            if (values != null) {
+                batch.add(values);
+            } else {
+                mRejected++;
+            }
+
+            if (batch.size() == BATCH_SIZE) {
+                commit(batch, pending, progress);
+                pending = 0;
+            }
+        }
+        commit(batch, pending, progress);
+    }
+
+    /**
+     * 在一个事务中插入一批笔记，成功后把这批记录计入已提交的记录数并报告进度
+     *
+     * @param records 这一批对应的记录数，包括跳过和无效的记录
+     */
+    private void commit(List<ContentValues> batch, int records, ResultReceiver progress) {
+        if (!batch.isEmpty()) {
+            mImported += mProvider.bulkInsert(NotePad.Notes.CONTENT_URI,
+                    batch.toArray(new ContentValues[batch.size()]));
+            batch.clear();
+        }
+        mRecords += records;
+        if (progress != null && records > 0) {
+            progress.send(0, buildResult());
+        }
+    }
+
+    private Bundle buildResult() {
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.IMPORT_RESULT_IMPORTED, mImported);
+        result.putInt(NotePad.Notes.IMPORT_RESULT_REJECTED, mRejected);
+        result.putInt(NotePad.Notes.IMPORT_RESULT_RECORDS, mRecords);
+        return result;
+    }
+
+    private static ContentValues parseJson(JSONObject object) {
+        return validate(
+                getString(object, NotePad.Notes.COLUMN_NAME_TITLE),
+                getString(object, NotePad.Notes.COLUMN_NAME_NOTE),
+                getString(object, NotePad.Notes.COLUMN_NAME_CREATE_DATE),
+                getString(object, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE),
+                getString(object, NotePad.Notes.COLUMN_NAME_CATEGORY));
+    }
+
+    private static String getString(JSONObject object, String name) {
+        return object.isNull(name) ? null : object.optString(name);
+    }
+
+    private static String getField(List<String> record, int index) {
+        return index >= 0 && index < record.size() ? record.get(index) : null;
+    }
+
+    /**
+     * 检查一行的内容并转换为插入的值。标题和内容都为空、或日期不是整数时返回null。
+     * 没有给出的列由bulkInsert填入默认值，导出文件中的_ID不导入。
+     */
+    static ContentValues validate(String title, String note, String created, String modified,
+            String category) {
+        if (TextUtils.isEmpty(title) && TextUtils.isEmpty(note)) {
+            return null;
+        }
+
+        ContentValues values = new ContentValues();
+        if (!TextUtils.isEmpty(title)) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
+        }
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, note != null ? note : "");
+        try {
+            if (!TextUtils.isEmpty(created)) {
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, Long.parseLong(created));
+            }
+            if (!TextUtils.isEmpty(modified)) {
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, Long.parseLong(modified));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (!TextUtils.isEmpty(category)) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, category);
+        }
+        return values;
+    }
+
+    /**
+     * 按RFC 4180读取一条CSV记录，引号中的字段可以含有逗号、引号和换行。
+     *
+     * @return 记录的各个字段，流结束时返回null
+     * @throws IOException 读取失败或最后一个引号没有结束
+     */
+    static List<String> readCsvRecord(BufferedReader reader) throws IOException {
+        int ch = reader.read();
+        if (ch < 0) {
+            return null;
+        }
+
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (ch < 0) {
+                    throw new IOException("Unterminated quoted CSV field");
+                }
+                if (ch == '"') {
+                    ch = reader.read();
+                    if (ch != '"') {
+                        // 引号结束，ch是引号后面的字符
+                        quoted = false;
+                        continue;
+                    }
+                }
+                field.append((char) ch);
+            } else if (ch == '"' && field.length() == 0) {
+                quoted = true;
+            } else if (ch == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (ch == '\r' || ch == '\n' || ch < 0) {
+                if (ch == '\r') {
+                    // 把\r\n当作一个换行
+                    reader.mark(1);
+                    if (reader.read() != '\n') {
+                        reader.reset();
+                    }
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) ch);
+            }
+            ch = reader.read();
+        }
+    }
+}
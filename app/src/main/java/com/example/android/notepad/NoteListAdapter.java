@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The adapter of the notes list. It shows the notes of a {@link NoteListSnapshot}, and uses the
+ * note _ID as the stable ID of each row.
+ *
+ * When a new snapshot was diffed against the list the adapter is showing, only the changed rows
+ * are dispatched, so editing one note moves or rebinds that one row instead of the whole list.
+ * Rows that did not change still show a modification time relative to when they were bound, so
+ * {@link #refreshTimes()} rebinds just the time of every row.
+ */
+public class NoteListAdapter extends RecyclerView.Adapter<NoteListAdapter.NoteViewHolder> {
+
+    /**
+     * 点击列表项时的回调
+     */
+    public interface OnNoteClickListener {
+        void onNoteClick(long id);
+    }
+
+    // 只更新修改时间的局部绑定
+    private static final Object PAYLOAD_TIME = new Object();
+
+    private final LayoutInflater mInflater;
+    private final NoteRowBinder mBinder;
+    private final OnNoteClickListener mListener;
+
+    // 当前显示的笔记，不可修改，只整体替换
+    private List<NoteListSnapshot.Note> mNotes = Collections.emptyList();
+
+    static final class NoteViewHolder extends RecyclerView.ViewHolder {
+        final NoteRowBinder.ViewHolder row;
+
+        NoteViewHolder(View itemView, NoteRowBinder.ViewHolder row) {
+            super(itemView);
+            this.row = row;
+        }
+    }
+
+    public NoteListAdapter(Context context, NoteRowBinder binder, OnNoteClickListener listener) {
+        mInflater = LayoutInflater.from(context);
+        mBinder = binder;
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * 显示新的笔记列表。快照是与当前列表比较得到的时，只通知有变化的行，否则刷新整个列表。
+     *
+     * @param snapshot 新的列表，为null时清空列表
+     */
+    public void setSnapshot(NoteListSnapshot snapshot) {
+        List<NoteListSnapshot.Note> notes = snapshot != null
+                ? snapshot.getNotes() : Collections.<NoteListSnapshot.Note>emptyList();
+        if (notes == mNotes) {
+            return;
+        }
+
+        DiffUtil.DiffResult diff = snapshot != null ? snapshot.getDiff() : null;
+        boolean diffApplies = diff != null && snapshot.getBase() == mNotes;
+        mNotes = notes;
+        if (diffApplies) {
+            diff.dispatchUpdatesTo(this);
+        } else {
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * 按当前时间重新显示所有行的相对时间。只重新绑定修改时间，屏幕外的行在显示时再绑定
+     */
+    public void refreshTimes() {
+        if (!mNotes.isEmpty()) {
+            notifyItemRangeChanged(0, mNotes.size(), PAYLOAD_TIME);
+        }
+    }
+
+    /**
+     * 当前显示的笔记，作为下一次加载的比较基准
+     */
+    public List<NoteListSnapshot.Note> getNotes() {
+        return mNotes;
+    }
+
+    public NoteListSnapshot.Note getNote(int position) {
+        return mNotes.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return mNotes.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mNotes.get(position).id;
+    }
+
+    @Override
+    public NoteViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View itemView = mInflater.inflate(R.layout.noteslist_item, parent, false);
+        final NoteViewHolder holder =
+                new NoteViewHolder(itemView, mBinder.createViewHolder(itemView));
+
+        itemView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                long id = holder.getItemId();
+                if (id != RecyclerView.NO_ID) {
+                    mListener.onNoteClick(id);
+                }
+            }
+        });
+        // 长按时由NotesRecyclerView显示上下文菜单
+        itemView.setLongClickable(true);
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(NoteViewHolder holder, int position) {
+        NoteListSnapshot.Note note = mNotes.get(position);
+        mBinder.bind(holder.row, note.title, note.snippet, note.modified, note.category,
+                System.currentTimeMillis());
+    }
+
+    @Override
+    public void onBindViewHolder(NoteViewHolder holder, int position, List<Object> payloads) {
+        if (!isTimeOnly(payloads)) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        mBinder.bindTime(holder.row, mNotes.get(position).modified, System.currentTimeMillis());
+    }
+
+    private static boolean isTimeOnly(List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            return false;
+        }
+        for (Object payload : payloads) {
+            if (payload != PAYLOAD_TIME) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
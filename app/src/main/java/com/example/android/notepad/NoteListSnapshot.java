@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.support.v7.util.DiffUtil;
+import android.text.TextUtils;
+
+import java.util.List;
+
+/**
+ * An immutable copy of the rows shown in the notes list, as produced by {@link NotesPageLoader}.
+ *
+ * Besides the notes, a snapshot carries the {@link DiffUtil.DiffResult} that turns the previous
+ * list into this one. The diff is computed on the loader thread, so the list only has to dispatch
+ * the changed rows to its adapter.
+ */
+public final class NoteListSnapshot {
+
+    /**
+     * One row of the notes list
+     */
+    public static final class Note {
+        final long id;
+        final String title;
+        final long modified;
+        final String category;
+        final String snippet;
+
+        Note(long id, String title, long modified, String category, String snippet) {
+            this.id = id;
+            this.title = title;
+            this.modified = modified;
+            this.category = category;
+            this.snippet = snippet;
+        }
+
+        /**
+         * 列表项显示的内容是否相同
+         */
+        boolean hasSameContents(Note other) {
+            return modified == other.modified
+                    && TextUtils.equals(title, other.title)
+                    && TextUtils.equals(category, other.category)
+                    && TextUtils.equals(snippet, other.snippet);
+        }
+    }
+
+    private final List<Note> mNotes;
+    private final List<Note> mBase;
+    private final DiffUtil.DiffResult mDiff;
+    private final boolean mHasMore;
+    private final int mPageCount;
+
+    NoteListSnapshot(List<Note> notes, List<Note> base, DiffUtil.DiffResult diff,
+            boolean hasMore, int pageCount) {
+        mNotes = notes;
+        mBase = base;
+        mDiff = diff;
+        mHasMore = hasMore;
+        mPageCount = pageCount;
+    }
+
+    /**
+     * 列表中的笔记，不可修改
+     */
+    List<Note> getNotes() {
+        return mNotes;
+    }
+
+    /**
+     * 计算差异时作为旧列表的笔记，没有旧列表时为null
+     */
+    List<Note> getBase() {
+        return mBase;
+    }
+
+    /**
+     * 从getBase()到getNotes()的差异。没有旧列表或列表太大不值得计算时为null
+     */
+    DiffUtil.DiffResult getDiff() {
+        return mDiff;
+    }
+
+    /**
+     * 后面是否可能还有没加载的笔记
+     */
+    boolean hasMore() {
+        return mHasMore;
+    }
+
+    int getPageCount() {
+        return mPageCount;
+    }
+
+    int getCount() {
+        return mNotes.size();
+    }
+
+    /**
+     * 按_ID比较两个笔记列表，用于DiffUtil
+     */
+    static final class DiffCallback extends DiffUtil.Callback {
+        private final List<Note> mOld;
+        private final List<Note> mNew;
+
+        DiffCallback(List<Note> oldNotes, List<Note> newNotes) {
+            mOld = oldNotes;
+            mNew = newNotes;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.get(oldItemPosition).id == mNew.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOld.get(oldItemPosition).hasSameContents(mNew.get(newItemPosition));
+        }
+    }
+}
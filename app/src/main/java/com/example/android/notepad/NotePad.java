@@ -87,6 +87,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the note search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * The content:// style URL for this table
          */
@@ -112,6 +117,296 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
                 = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for a full-text search over note titles and contents. The
+         * search terms are passed in the {@link #QUERY_PARAMETER_SEARCH} query parameter, and
+         * matching notes are returned best match first unless a sort order is given.
+         */
+        public static final Uri CONTENT_SEARCH_URI
+                = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Query parameter of {@link #CONTENT_SEARCH_URI} that holds the user's search terms
+         */
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameter of change notification URIs that tells what happened to the note in
+         * the URI: {@link #CHANGE_INSERT}, {@link #CHANGE_UPDATE} or {@link #CHANGE_DELETE}.
+         * Changes to a single note are notified on its note ID URI with this parameter, for
+         * example <code>notes/5?change=update&amp;columns=title,modified</code>. Changes that
+         * may affect many notes are notified on {@link #CONTENT_URI} without parameters.
+         */
+        public static final String QUERY_PARAMETER_CHANGE = "change";
+
+        /**
+         * Query parameter of update notification URIs that lists the changed columns, separated
+         * by commas
+         */
+        public static final String QUERY_PARAMETER_CHANGED_COLUMNS = "columns";
+
+        /**
+         * Query parameter of update notification URIs that holds the new modification date, when
+         * the update set it. A writer can recognize the notifications of its own updates by it.
+         */
+        public static final String QUERY_PARAMETER_CHANGED_MODIFIED = "modified";
+
+        /**
+         * Values of {@link #QUERY_PARAMETER_CHANGE}
+         */
+        public static final String CHANGE_INSERT = "insert";
+        public static final String CHANGE_UPDATE = "update";
+        public static final String CHANGE_DELETE = "delete";
+
+        /**
+         * Stream MIME type of {@link #CONTENT_URI} that exports the notes as JSON Lines: one
+         * JSON object per note and line, keyed by column name. Open the stream with
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor}.
+         */
+        public static final String EXPORT_TYPE_JSON_LINES = "application/x-ndjson";
+
+        /**
+         * Stream MIME type of {@link #CONTENT_URI} that exports the notes as CSV, with a header
+         * row of column names
+         */
+        public static final String EXPORT_TYPE_CSV = "text/csv";
+
+        /**
+         * Option of an export stream that holds a selection limiting the exported notes. All
+         * notes are exported when it is not given.
+         */
+        public static final String EXPORT_OPTION_SELECTION = "selection";
+
+        /**
+         * Option of an export stream that holds the String[] arguments of
+         * {@link #EXPORT_OPTION_SELECTION}
+         */
+        public static final String EXPORT_OPTION_SELECTION_ARGS = "selectionArgs";
+
+        /**
+         * Provider method, passed to {@link android.content.ContentResolver#call}, that imports
+         * notes from a stream in the format of an export. The extras hold the stream in
+         * {@link #IMPORT_EXTRA_FILE} and its type in {@link #IMPORT_EXTRA_MIME_TYPE}. The notes
+         * get new _IDs; rows without a title and a note, or with invalid dates, are skipped.
+         *
+         * The result holds {@link #IMPORT_RESULT_IMPORTED}, {@link #IMPORT_RESULT_REJECTED} and
+         * {@link #IMPORT_RESULT_RECORDS}, and {@link #IMPORT_RESULT_ERROR} if the import stopped
+         * early. Rows are committed in batches, so after a failure the import can be resumed
+         * by passing the returned record count in {@link #IMPORT_EXTRA_SKIP_RECORDS}.
+         */
+        public static final String METHOD_IMPORT = "import";
+
+        /**
+         * Extra of {@link #METHOD_IMPORT} holding a readable ParcelFileDescriptor of the stream
+         */
+        public static final String IMPORT_EXTRA_FILE = "file";
+
+        /**
+         * Extra of {@link #METHOD_IMPORT} holding {@link #EXPORT_TYPE_JSON_LINES} or
+         * {@link #EXPORT_TYPE_CSV}
+         */
+        public static final String IMPORT_EXTRA_MIME_TYPE = "mimeType";
+
+        /**
+         * Optional int extra of {@link #METHOD_IMPORT}: the number of records at the start of
+         * the stream that an earlier import already committed
+         */
+        public static final String IMPORT_EXTRA_SKIP_RECORDS = "skipRecords";
+
+        /**
+         * Optional extra of {@link #METHOD_IMPORT} holding an android.os.ResultReceiver. After
+         * each committed batch it receives a Bundle with the same keys as the result.
+         */
+        public static final String IMPORT_EXTRA_PROGRESS = "progress";
+
+        /**
+         * Int result of {@link #METHOD_IMPORT}: the number of notes inserted
+         */
+        public static final String IMPORT_RESULT_IMPORTED = "imported";
+
+        /**
+         * Int result of {@link #METHOD_IMPORT}: the number of invalid rows that were skipped
+         */
+        public static final String IMPORT_RESULT_REJECTED = "rejected";
+
+        /**
+         * Int result of {@link #METHOD_IMPORT}: the number of records from the start of the
+         * stream that are committed, including skipped and rejected ones
+         */
+        public static final String IMPORT_RESULT_RECORDS = "records";
+
+        /**
+         * String result of {@link #METHOD_IMPORT} describing why the import stopped early
+         */
+        public static final String IMPORT_RESULT_ERROR = "error";
+
+        /**
+         * Provider method, passed to {@link android.content.ContentResolver#call}, that replaces
+         * the content of one note with text read from a stream, so that a long note never has to
+         * be passed as one string. The arg is the note ID URI, and the extras hold a readable
+         * ParcelFileDescriptor of the UTF-8 text in {@link #WRITE_NOTE_EXTRA_FILE}. The snippet
+         * and the modification date change with the content, in the same transaction, together
+         * with any other columns given in {@link #WRITE_NOTE_EXTRA_VALUES}. The modification
+         * date is the current time unless it is one of those columns.
+         *
+         * The result holds the number of notes that were changed in
+         * {@link #WRITE_NOTE_RESULT_COUNT}. If the text could not be read to its end, nothing is
+         * changed and {@link #WRITE_NOTE_RESULT_ERROR} describes why.
+         *
+         * The content of a note is read as a stream by opening its note ID URI with
+         * {@link android.content.ContentResolver#openInputStream}.
+         */
+        public static final String METHOD_WRITE_NOTE = "write_note";
+
+        /**
+         * Extra of {@link #METHOD_WRITE_NOTE} holding a readable ParcelFileDescriptor of the text
+         */
+        public static final String WRITE_NOTE_EXTRA_FILE = "file";
+
+        /**
+         * Optional extra of {@link #METHOD_WRITE_NOTE}, a ContentValues of other columns to
+         * update with the content
+         */
+        public static final String WRITE_NOTE_EXTRA_VALUES = "values";
+
+        /**
+         * Integer result of {@link #METHOD_WRITE_NOTE}, the number of notes changed
+         */
+        public static final String WRITE_NOTE_RESULT_COUNT = "count";
+
+        /**
+         * String result of {@link #METHOD_WRITE_NOTE} describing why the content was not written
+         */
+        public static final String WRITE_NOTE_RESULT_ERROR = "error";
+
+        /**
+         * Provider method, passed to {@link android.content.ContentResolver#call}, that returns
+         * the provider's statistics since it was started. The result holds a Bundle for each
+         * operation and kind of URI that was used, keyed by the operation and the URI pattern,
+         * for example <code>query:notes/#</code>. Operations are query, insert, update, delete
+         * and stream, the reading of a note or an export through a pipe.
+         *
+         * Each of these Bundles holds {@link #STATS_COUNT}, {@link #STATS_TOTAL_MICROS},
+         * {@link #STATS_MAX_MICROS}, {@link #STATS_ROWS}, {@link #STATS_BYTES} and
+         * {@link #STATS_HISTOGRAM}. The result also holds {@link #STATS_HISTOGRAM_BOUNDS},
+         * {@link #STATS_NOTIFICATIONS} and {@link #STATS_SUPPRESSED_NOTIFICATIONS}.
+         */
+        public static final String METHOD_GET_STATS = "get_stats";
+
+        /**
+         * Long in the statistics of an operation: the number of calls
+         */
+        public static final String STATS_COUNT = "count";
+
+        /**
+         * Long in the statistics of an operation: the total time of all calls, in microseconds
+         */
+        public static final String STATS_TOTAL_MICROS = "total_us";
+
+        /**
+         * Long in the statistics of an operation: the time of the slowest call, in microseconds
+         */
+        public static final String STATS_MAX_MICROS = "max_us";
+
+        /**
+         * Long in the statistics of an operation: the number of rows returned or changed
+         */
+        public static final String STATS_ROWS = "rows";
+
+        /**
+         * Long in the statistics of an operation: the number of bytes written to pipes
+         */
+        public static final String STATS_BYTES = "bytes";
+
+        /**
+         * long[] in the statistics of an operation: the number of calls in each latency bucket
+         */
+        public static final String STATS_HISTOGRAM = "histogram";
+
+        /**
+         * long[] in the result of {@link #METHOD_GET_STATS}: the exclusive upper bound of each
+         * latency bucket, in microseconds. The last bucket also counts all slower calls.
+         */
+        public static final String STATS_HISTOGRAM_BOUNDS = "histogram_bounds_us";
+
+        /**
+         * Long in the result of {@link #METHOD_GET_STATS}: the number of change notifications
+         * sent
+         */
+        public static final String STATS_NOTIFICATIONS = "notifications";
+
+        /**
+         * Long in the result of {@link #METHOD_GET_STATS}: the number of changes that were not
+         * notified on their own because they were part of a batch or an import
+         */
+        public static final String STATS_SUPPRESSED_NOTIFICATIONS = "suppressed_notifications";
+
+        /**
+         * Provider method, passed to {@link android.content.ContentResolver#call}, that returns
+         * the most recent slow queries, oldest first, in {@link #SLOW_QUERIES_RESULT}. A query
+         * is slow when it took at least {@link #SLOW_QUERY_THRESHOLD_MILLIS}. The result also
+         * holds the threshold and {@link #SLOW_QUERIES_TOTAL}.
+         *
+         * Each query is a Bundle with {@link #SLOW_QUERY_TIME}, {@link #SLOW_QUERY_SQL},
+         * {@link #SLOW_QUERY_ARGS}, {@link #SLOW_QUERY_MICROS}, {@link #SLOW_QUERY_ROWS} and
+         * {@link #SLOW_QUERY_PLAN}. Argument values are not kept.
+         */
+        public static final String METHOD_GET_SLOW_QUERIES = "get_slow_queries";
+
+        /**
+         * Provider method, passed to {@link android.content.ContentResolver#call}, that sets the
+         * slow query threshold. The arg is the threshold in milliseconds; 0 logs every query.
+         */
+        public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+        /**
+         * ArrayList of Bundles in the result of {@link #METHOD_GET_SLOW_QUERIES}
+         */
+        public static final String SLOW_QUERIES_RESULT = "queries";
+
+        /**
+         * Long in the result of {@link #METHOD_GET_SLOW_QUERIES}: the number of slow queries
+         * since the provider started, including those no longer kept
+         */
+        public static final String SLOW_QUERIES_TOTAL = "total";
+
+        /**
+         * Long in the result of {@link #METHOD_GET_SLOW_QUERIES}: the current threshold
+         */
+        public static final String SLOW_QUERY_THRESHOLD_MILLIS = "threshold_ms";
+
+        /**
+         * Long in a slow query: when it ran, from System.currentTimeMillis()
+         */
+        public static final String SLOW_QUERY_TIME = "time";
+
+        /**
+         * String in a slow query: the SQL that was run
+         */
+        public static final String SLOW_QUERY_SQL = "sql";
+
+        /**
+         * String[] in a slow query: the shape of each argument, "null", "integer" or
+         * "text(length)"
+         */
+        public static final String SLOW_QUERY_ARGS = "args";
+
+        /**
+         * Long in a slow query: how long running it and filling its first window took, in
+         * microseconds
+         */
+        public static final String SLOW_QUERY_MICROS = "duration_us";
+
+        /**
+         * Int in a slow query: the number of rows returned
+         */
+        public static final String SLOW_QUERY_ROWS = "rows";
+
+        /**
+         * String in a slow query: the output of EXPLAIN QUERY PLAN, one step per line
+         */
+        public static final String SLOW_QUERY_PLAN = "plan";
+
         /*
          * MIME type definitions
          */
@@ -132,6 +427,30 @@ public final class NotePad {
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
 
+        /**
+         * The sort order for paged queries of {@link #CONTENT_URI}. The _ID tie breaker makes the
+         * order total, so the last row of a page identifies where the next page starts.
+         */
+        public static final String PAGED_SORT_ORDER = "modified DESC, _id DESC";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} that limits the number of notes returned
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} holding the modification date of the last note
+         * of the previous page. Used together with {@link #QUERY_PARAMETER_BEFORE_ID} to return
+         * only the notes that come after it in {@link #PAGED_SORT_ORDER}.
+         */
+        public static final String QUERY_PARAMETER_BEFORE_MODIFIED = "before_modified";
+
+        /**
+         * Query parameter of {@link #CONTENT_URI} holding the _ID of the last note of the
+         * previous page
+         */
+        public static final String QUERY_PARAMETER_BEFORE_ID = "before_id";
+
         /*
          * Column definitions
          */
@@ -143,7 +462,10 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. Notes longer than {@link #LARGE_NOTE_LENGTH}
+         * characters are stored in pieces: for them this column reads null, does not match
+         * selections on it, and the content must be read with
+         * {@link android.content.ContentResolver#openInputStream}.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
@@ -159,5 +481,26 @@ public final class NotePad {
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Column name for a short preview of the note content, for lists. The provider computes
+         * it whenever the note is written: runs of whitespace become one space, and it is cut
+         * after a fixed number of characters. Values passed by callers are ignored.
+         * <P>Type: TEXT (read only)</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Column name for the number of characters in the note content. Lets a client decide
+         * how to load a note before reading its content.
+         * <P>Type: INTEGER (read only)</P>
+         */
+        public static final String COLUMN_NAME_NOTE_LENGTH = "note_length";
+
+        /**
+         * The number of characters above which the provider stores a note in pieces. See
+         * {@link #COLUMN_NAME_NOTE}.
+         */
+        public static final int LARGE_NOTE_LENGTH = 256 * 1024;
     }
 }
\ No newline at end of file
@@ -18,12 +18,16 @@ package com.example.android.notepad;
 
 import com.example.android.notepad.NotePad;
 
+import android.annotation.TargetApi;
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
@@ -33,20 +37,32 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
 import android.provider.LiveFolders;
+import android.support.v4.os.TraceCompat;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -64,36 +80,196 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 8;
+
+    /**
+     * 摘要的最大字符数
+     */
+    static final int SNIPPET_LENGTH = 100;
+
+    /**
+     * 笔记内容表，note_id与notes._id一一对应。内容不放在notes表中，只读取标题、日期和分类的
+     * 列表查询就不会读到存放长内容的页
+     */
+    static final String BODY_TABLE_NAME = "notes_body";
+
+    /**
+     * 内容表中笔记_ID的列名。不叫_id，这样连接后的查询中_id没有歧义
+     */
+    static final String BODY_COLUMN_NOTE_ID = "note_id";
+
+    /**
+     * 内容表中分段存储的内容的字符数。内容在note列中时为null
+     */
+    static final String BODY_COLUMN_CHUNKED_LENGTH = "chunked_length";
+
+    /**
+     * 分段内容表，存放超过LARGE_NOTE_LENGTH个字符的笔记内容，每段一行，按seq排列。
+     * 这些笔记在内容表中的note列为null，全文检索索引中仍是完整的内容
+     */
+    static final String CHUNKS_TABLE_NAME = "notes_body_chunks";
+
+    // 分段内容表的列，笔记_ID的列名和内容表相同
+    private static final String CHUNKS_COLUMN_SEQ = "seq";
+    private static final String CHUNKS_COLUMN_CHUNK = "chunk";
+
+    // 把内容表按主键左连接到notes表
+    private static final String BODY_JOIN = " LEFT OUTER JOIN " + BODY_TABLE_NAME + " ON ("
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = "
+            + BODY_TABLE_NAME + "." + BODY_COLUMN_NOTE_ID + ")";
+
+    /**
+     * 查询笔记使用的表。投影和条件中没有note列时，SQLite会省略这个左连接，只读notes表
+     */
+    static final String NOTES_WITH_BODY_TABLES = NotePad.Notes.TABLE_NAME + BODY_JOIN;
+
+    /**
+     * 全文检索影子表，docid 与 notes._id 一一对应，由触发器保持同步
+     */
+    private static final String SEARCH_TABLE_NAME = "notes_fts";
+
+    /**
+     * 列表按修改时间排序时使用的索引
+     */
+    static final String INDEX_MODIFIED = "notes_modified_index";
+
+    /**
+     * 按分类筛选并按修改时间排序时使用的索引，也覆盖只按分类筛选的查询
+     */
+    static final String INDEX_CATEGORY_MODIFIED = "notes_category_modified_index";
 
     // URI匹配常量
-    private static final int NOTES = 1;
+    static final int NOTES = 1;
     private static final int NOTE_ID = 2;
     private static final int LIVE_FOLDER_NOTES = 3;
+    private static final int NOTES_SEARCH = 4;
+
+    // 统计中的URI名称，下标是上面的匹配常量，0用于不匹配的URI
+    private static final String[] URI_NAMES = {
+            "unknown", "notes", "notes/#", "live_folders/notes", "notes/search" };
 
     // 投影映射
     private static HashMap<String, String> sNotesProjectionMap;
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
-    // 读取笔记的投影
+    // 读取笔记的投影，内容在管道线程上再读取
     private static final String[] READ_NOTE_PROJECTION = new String[] {
             NotePad.Notes._ID,
-            NotePad.Notes.COLUMN_NAME_NOTE,
             NotePad.Notes.COLUMN_NAME_TITLE,
     };
-    private static final int READ_NOTE_NOTE_INDEX = 1;
-    private static final int READ_NOTE_TITLE_INDEX = 2;
+    private static final int READ_NOTE_ID_INDEX = 0;
+    private static final int READ_NOTE_TITLE_INDEX = 1;
+
+    // bulkInsert预编译语句中的列，顺序与绑定参数的位置一致
+    private static final String[] BULK_INSERT_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+    };
+
+    private static final String BULK_INSERT_SQL = "INSERT INTO " + NotePad.Notes.TABLE_NAME
+            + " (" + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+            + NotePad.Notes.COLUMN_NAME_SNIPPET + ") VALUES (?, ?, ?, ?, ?)";
+
+    private static final String BODY_INSERT_SQL = "INSERT INTO " + BODY_TABLE_NAME
+            + " (" + BODY_COLUMN_NOTE_ID + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+            + ") VALUES (?, ?)";
+
+    /**
+     * 分段存储时每段最多的字符数，UTF-8编码后远小于CursorWindow
+     */
+    static final int BODY_CHUNK_LENGTH = 64 * 1024;
+
+    // 内容的字符数，内容分段存储时来自chunked_length列
+    private static final String NOTE_LENGTH_SQL = "ifnull(length(" + BODY_TABLE_NAME + "."
+            + NotePad.Notes.COLUMN_NAME_NOTE + "), " + BODY_TABLE_NAME + "."
+            + BODY_COLUMN_CHUNKED_LENGTH + ")";
+
+    // 读取一条笔记的内容：内容在note列中时是一行，分段存储时是按seq排列的各段。一条笔记
+    // 只会有其中一种，两部分都沿主键读取，按seq合并，不需要临时排序
+    private static final String BODY_READ_SQL = "SELECT " + NotePad.Notes.COLUMN_NAME_NOTE
+            + ", -1 AS " + CHUNKS_COLUMN_SEQ + " FROM " + BODY_TABLE_NAME
+            + " WHERE " + BODY_COLUMN_NOTE_ID + " = ? AND " + NotePad.Notes.COLUMN_NAME_NOTE
+            + " IS NOT NULL UNION ALL SELECT " + CHUNKS_COLUMN_CHUNK + ", " + CHUNKS_COLUMN_SEQ
+            + " FROM " + CHUNKS_TABLE_NAME + " WHERE " + BODY_COLUMN_NOTE_ID + " = ?"
+            + " ORDER BY " + CHUNKS_COLUMN_SEQ;
+
+    private static final String CHUNKS_INSERT_SQL = "INSERT INTO " + CHUNKS_TABLE_NAME
+            + " (" + BODY_COLUMN_NOTE_ID + ", " + CHUNKS_COLUMN_SEQ + ", " + CHUNKS_COLUMN_CHUNK
+            + ") VALUES (?, ?, ?)";
+
+    private static final String CHUNKS_DELETE_SQL = "DELETE FROM " + CHUNKS_TABLE_NAME
+            + " WHERE " + BODY_COLUMN_NOTE_ID + " = ?";
+
+    // 分段存储的笔记在全文检索索引中的内容由这条语句写入，触发器只能写入note列
+    private static final String SEARCH_NOTE_UPDATE_SQL = "UPDATE " + SEARCH_TABLE_NAME
+            + " SET " + NotePad.Notes.COLUMN_NAME_NOTE + " = ? WHERE docid = ?";
+
+    // 搜索时的LIKE条件，模式由escapeLikePattern转义
+    private static final String LIKE_ESCAPED = " LIKE ? ESCAPE '\\'";
+
+    // 按条件更新时暂存选出的笔记_ID的临时表，只在更新的事务中使用
+    private static final String UPDATE_IDS_TABLE_NAME = "temp.update_ids";
+
+    // 读取要放入缓存的一行，列的顺序与NoteCache.COLUMNS一致。内容太长时不读出内容
+    private static final String CACHE_ROW_SQL = "SELECT "
+            + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + ", "
+            + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+            + "CASE WHEN length(" + NotePad.Notes.COLUMN_NAME_NOTE + ") <= "
+            + NoteCache.MAX_NOTE_LENGTH + " THEN " + NotePad.Notes.COLUMN_NAME_NOTE + " END, "
+            + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+            + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+            + NotePad.Notes.COLUMN_NAME_SNIPPET + ", "
+            + NOTE_LENGTH_SQL
+            + " FROM " + NOTES_WITH_BODY_TABLES
+            + " WHERE " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " = ?";
+
+    private static final String BODY_UPDATE_SQL = "UPDATE " + BODY_TABLE_NAME + " SET "
+            + NotePad.Notes.COLUMN_NAME_NOTE + " = ?, " + BODY_COLUMN_CHUNKED_LENGTH
+            + " = ? WHERE " + BODY_COLUMN_NOTE_ID + " = ?";
 
     // 流类型
     private static final ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    // 笔记目录的导出流类型
+    private static final ClipDescription EXPORT_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_TYPE_JSON_LINES, NotePad.Notes.EXPORT_TYPE_CSV });
+
     // URI匹配器
     private static final UriMatcher sUriMatcher;
 
     // 数据库助手
     private DatabaseHelper mOpenHelper;
 
+    // 按_ID更新笔记的预编译语句，按SQL缓存，由自身保护
+    private final HashMap<String, SQLiteStatement> mUpdateStatements =
+            new HashMap<String, SQLiteStatement>();
+
+    // 最近使用的笔记，按_ID查询时先查这里
+    private final NoteCache mNoteCache = new NoteCache();
+
+    // 按_ID更新时，从提交到写入缓存之间持有，保证缓存按提交顺序更新
+    private final Object mCacheCommitLock = new Object();
+
+    // 测试用，按_ID更新时在提交前执行
+    private Runnable mBeforeCommitForTest;
+
+    // 各个操作的耗时和计数，一直开启
+    private final ProviderStats mStats = new ProviderStats(URI_NAMES);
+
+    // 最近的慢查询
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog();
+
+    // 当前线程是否正在执行applyBatch或导入，批量操作期间的变化在结束时统一通知
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
     // 静态初始化块
     static {
         sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
@@ -102,6 +278,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes", NOTES);
         sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#", NOTE_ID);
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", NOTES_SEARCH);
 
         // 初始化笔记投影映射
         sNotesProjectionMap = new HashMap<String, String>();
@@ -111,6 +288,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, NotePad.Notes.COLUMN_NAME_CREATE_DATE);
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.COLUMN_NAME_CATEGORY);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_SNIPPET);
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE_LENGTH, NOTE_LENGTH_SQL + " AS "
+                + NotePad.Notes.COLUMN_NAME_NOTE_LENGTH);
 
         // 初始化Live Folder投影映射
         sLiveFolderProjectionMap = new HashMap<String, String>();
@@ -123,24 +303,120 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     static class DatabaseHelper extends SQLiteOpenHelper {
 
+        // createTriggers创建的触发器
+        private static final String[] TRIGGERS = new String[] {
+                "notes_fts_insert", "notes_fts_update", "notes_fts_delete",
+                "notes_body_fts_insert", "notes_body_fts_update" };
+
+        // 连接配置，来自res/values/config.xml
+        private final boolean mWriteAheadLogging;
+        private final String mSynchronous;
+        private final int mPageSize;
+        private final int mCacheSize;
+        private final int mWalAutoCheckpoint;
+
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+            Resources res = context.getResources();
+            mWriteAheadLogging = res.getBoolean(R.bool.db_write_ahead_logging);
+            mSynchronous = res.getString(R.string.db_synchronous);
+            mPageSize = res.getInteger(R.integer.db_page_size);
+            mCacheSize = res.getInteger(R.integer.db_cache_size);
+            mWalAutoCheckpoint = res.getInteger(R.integer.db_wal_autocheckpoint);
+        }
+
+        /**
+         * API 16及以上在创建或升级数据库之前配置连接
+         */
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // 页大小必须在建表和开启WAL之前设置
+            db.execSQL("PRAGMA page_size = " + mPageSize);
+            if (mWriteAheadLogging) {
+                db.enableWriteAheadLogging();
+            }
+            configureConnection(db);
+        }
+
+        /**
+         * API 16以下没有onConfigure，在数据库打开后再配置
+         */
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                if (mWriteAheadLogging && !db.isReadOnly()) {
+                    db.enableWriteAheadLogging();
+                }
+                configureConnection(db);
+            }
+        }
+
+        /**
+         * 在主连接上设置同步级别、页缓存大小和WAL自动检查点。这些PRAGMA只作用于执行它们的
+         * 连接，而且不写数据库，WAL模式下连接池会把事务以外的它们交给只读连接执行，所以
+         * cache_size和wal_autocheckpoint在事务中执行，事务总是使用主连接。所有写入都在主
+         * 连接上，检查点只需要在这里设置；连接池另外打开的只读连接仍使用SQLite默认的页缓存。
+         *
+         * synchronous不能在事务中修改，开启WAL时框架还会在每个连接上按系统的WAL同步级别
+         * 设置它，所以配置的同步级别只在关闭WAL时生效，此时只有主连接。
+         */
+        private void configureConnection(SQLiteDatabase db) {
+            if (!mWriteAheadLogging) {
+                if (isValidSynchronous(mSynchronous)) {
+                    db.execSQL("PRAGMA synchronous = " + mSynchronous);
+                } else {
+                    Log.w(TAG, "忽略无效的synchronous配置: " + mSynchronous);
+                }
+            }
+
+            // 只读打开时没有开启WAL，只有主连接，也不能开启写事务
+            boolean transaction = !db.isReadOnly();
+            if (transaction) {
+                db.beginTransaction();
+            }
+            try {
+                db.execSQL("PRAGMA cache_size = " + mCacheSize);
+                if (mWriteAheadLogging) {
+                    // 这条PRAGMA会返回结果行，不能用execSQL执行
+                    Cursor c = db.rawQuery("PRAGMA wal_autocheckpoint = " + mWalAutoCheckpoint,
+                            null);
+                    try {
+                        c.moveToFirst();
+                    } finally {
+                        c.close();
+                    }
+                }
+                if (transaction) {
+                    db.setTransactionSuccessful();
+                }
+            } finally {
+                if (transaction) {
+                    db.endTransaction();
+                }
+            }
+        }
+
+        private static boolean isValidSynchronous(String level) {
+            return "OFF".equalsIgnoreCase(level) || "NORMAL".equalsIgnoreCase(level)
+                    || "FULL".equalsIgnoreCase(level) || "EXTRA".equalsIgnoreCase(level);
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             // 创建包含分类字段的表
-            String sql = "CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
-                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
-                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
-                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
-                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT 'General'"
-                    + ");";
+            createNotesTable(db, NotePad.Notes.TABLE_NAME);
+            createBodyTable(db);
+            createChunksTable(db);
 
-            Log.d(TAG, "执行SQL: " + sql);
-            db.execSQL(sql);
+            // 创建列表查询使用的索引
+            createIndexes(db);
+
+            // 创建全文检索索引，示例数据由触发器写入索引
+            createSearchTable(db);
+            createTriggers(db);
 
             // 插入示例数据
             insertSampleData(db);
@@ -162,10 +438,239 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     // 如果添加失败，重建表
                     db.execSQL("DROP TABLE IF EXISTS " + NotePad.Notes.TABLE_NAME);
                     onCreate(db);
+                    return;
+                }
+            }
+
+            if (oldVersion < 4) {
+                // 为已有笔记建立全文检索索引，触发器在版本6的升级中创建
+                createSearchTable(db);
+                db.execSQL("INSERT INTO " + SEARCH_TABLE_NAME + " (docid, "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT "
+                        + NotePad.Notes._ID + ", "
+                        + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                        + NotePad.Notes.COLUMN_NAME_NOTE
+                        + " FROM " + NotePad.Notes.TABLE_NAME);
+                Log.i(TAG, "成功建立全文检索索引");
+            }
+
+            if (oldVersion < 5) {
+                createIndexes(db);
+                Log.i(TAG, "成功建立列表查询索引");
+            }
+
+            if (oldVersion < 6) {
+                moveBodies(db);
+                Log.i(TAG, "成功把笔记内容移到" + BODY_TABLE_NAME + "表");
+            }
+
+            if (oldVersion < 7) {
+                // 版本6之前的升级重建notes表时已经包含摘要列
+                if (oldVersion >= 6) {
+                    db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                            + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT");
+                }
+                fillSnippets(db);
+                Log.i(TAG, "成功生成笔记摘要");
+            }
+
+            if (oldVersion < 8) {
+                // 版本6之前的升级创建内容表时已经包含chunked_length列
+                if (oldVersion >= 6) {
+                    db.execSQL("ALTER TABLE " + BODY_TABLE_NAME + " ADD COLUMN "
+                            + BODY_COLUMN_CHUNKED_LENGTH + " INTEGER");
+                }
+                createChunksTable(db);
+                splitLargeBodies(db);
+                Log.i(TAG, "成功分段存储大笔记");
+            }
+        }
+
+        /**
+         * 把已有的超过LARGE_NOTE_LENGTH个字符的内容移到分段内容表。每段由一条INSERT用substr
+         * 在SQLite中切出，内容不经过CursorWindow。全文检索索引中的内容不变，转换期间先删除
+         * 触发器，否则把note列改为null时索引中的内容也被清空。
+         */
+        private static void splitLargeBodies(SQLiteDatabase db) {
+            for (String trigger : TRIGGERS) {
+                db.execSQL("DROP TRIGGER IF EXISTS " + trigger);
+            }
+
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " + CHUNKS_TABLE_NAME
+                    + " (" + BODY_COLUMN_NOTE_ID + ", " + CHUNKS_COLUMN_SEQ + ", "
+                    + CHUNKS_COLUMN_CHUNK + ") SELECT " + BODY_COLUMN_NOTE_ID + ", ?, substr("
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, " + BODY_CHUNK_LENGTH + ") FROM "
+                    + BODY_TABLE_NAME + " WHERE " + BODY_COLUMN_NOTE_ID + " = ?");
+            Cursor c = db.rawQuery("SELECT " + BODY_COLUMN_NOTE_ID + ", length("
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + BODY_TABLE_NAME
+                    + " WHERE length(" + NotePad.Notes.COLUMN_NAME_NOTE + ") > "
+                    + NotePad.Notes.LARGE_NOTE_LENGTH, null);
+            try {
+                while (c.moveToNext()) {
+                    long noteId = c.getLong(0);
+                    long length = c.getLong(1);
+                    // substr按字符计数，不会切开代理对
+                    for (long seq = 0; seq * BODY_CHUNK_LENGTH < length; seq++) {
+                        insert.bindLong(1, seq);
+                        insert.bindLong(2, seq * BODY_CHUNK_LENGTH + 1);
+                        insert.bindLong(3, noteId);
+                        insert.executeInsert();
+                    }
+                }
+            } finally {
+                c.close();
+                insert.close();
+            }
+            db.execSQL("UPDATE " + BODY_TABLE_NAME + " SET " + BODY_COLUMN_CHUNKED_LENGTH
+                    + " = length(" + NotePad.Notes.COLUMN_NAME_NOTE + "), "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = NULL WHERE length("
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ") > " + NotePad.Notes.LARGE_NOTE_LENGTH);
+
+            createTriggers(db);
+        }
+
+        /**
+         * 为已有笔记生成摘要
+         */
+        private static void fillSnippets(SQLiteDatabase db) {
+            SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                    + " SET " + NotePad.Notes.COLUMN_NAME_SNIPPET + " = ? WHERE "
+                    + NotePad.Notes._ID + " = ?");
+            Cursor c = db.query(BODY_TABLE_NAME,
+                    new String[] { BODY_COLUMN_NOTE_ID, NotePad.Notes.COLUMN_NAME_NOTE },
+                    null, null, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    update.bindString(1, makeSnippet(c.getString(1)));
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
                 }
+            } finally {
+                c.close();
+                update.close();
             }
         }
 
+        /**
+         * 创建不含内容列的笔记表
+         */
+        private static void createNotesTable(SQLiteDatabase db, String name) {
+            db.execSQL("CREATE TABLE " + name + " ("
+                    + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY + " TEXT DEFAULT 'General',"
+                    + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT"
+                    + ")");
+        }
+
+        private static void createBodyTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + BODY_TABLE_NAME + " ("
+                    + BODY_COLUMN_NOTE_ID + " INTEGER PRIMARY KEY,"
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                    + BODY_COLUMN_CHUNKED_LENGTH + " INTEGER"
+                    + ")");
+        }
+
+        /**
+         * 创建分段内容表，主键保证按笔记读取各段时沿索引按seq的顺序读出
+         */
+        private static void createChunksTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + CHUNKS_TABLE_NAME + " ("
+                    + BODY_COLUMN_NOTE_ID + " INTEGER NOT NULL,"
+                    + CHUNKS_COLUMN_SEQ + " INTEGER NOT NULL,"
+                    + CHUNKS_COLUMN_CHUNK + " TEXT,"
+                    + "PRIMARY KEY (" + BODY_COLUMN_NOTE_ID + ", " + CHUNKS_COLUMN_SEQ + ")"
+                    + ")");
+        }
+
+        /**
+         * 把notes表中的内容移到内容表，再重建不含内容列的notes表。
+         * 删除旧表时它的索引和触发器也被删除，需要重新创建。
+         */
+        private static void moveBodies(SQLiteDatabase db) {
+            createBodyTable(db);
+            db.execSQL("INSERT INTO " + BODY_TABLE_NAME + " (" + BODY_COLUMN_NOTE_ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ") SELECT " + NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
+
+            String columns = NotePad.Notes._ID + ", "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                    + NotePad.Notes.COLUMN_NAME_CATEGORY;
+            String newTable = NotePad.Notes.TABLE_NAME + "_new";
+            createNotesTable(db, newTable);
+            db.execSQL("INSERT INTO " + newTable + " (" + columns + ") SELECT " + columns
+                    + " FROM " + NotePad.Notes.TABLE_NAME);
+            db.execSQL("DROP TABLE " + NotePad.Notes.TABLE_NAME);
+            db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + NotePad.Notes.TABLE_NAME);
+
+            createIndexes(db);
+            createTriggers(db);
+        }
+
+        /**
+         * 创建按修改时间排序和按分类筛选使用的二级索引
+         */
+        private static void createIndexes(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX " + INDEX_MODIFIED + " ON " + NotePad.Notes.TABLE_NAME
+                    + " (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ")");
+            db.execSQL("CREATE INDEX " + INDEX_CATEGORY_MODIFIED + " ON "
+                    + NotePad.Notes.TABLE_NAME + " (" + NotePad.Notes.COLUMN_NAME_CATEGORY + ", "
+                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ")");
+        }
+
+        /**
+         * 创建标题和内容的FTS4索引表
+         */
+        private static void createSearchTable(SQLiteDatabase db) {
+            db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ")");
+        }
+
+        /**
+         * 创建触发器：删除笔记时删除它的内容和分段，并保持全文检索索引与notes表和内容表同步。
+         * 新笔记先插入notes表，再插入内容表。分段存储的内容由写入方更新索引。
+         */
+        private static void createTriggers(SQLiteDatabase db) {
+            db.execSQL("CREATE TRIGGER notes_fts_insert AFTER INSERT ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "INSERT INTO " + SEARCH_TABLE_NAME + " (docid, "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + ") VALUES (new." + NotePad.Notes._ID
+                    + ", new." + NotePad.Notes.COLUMN_NAME_TITLE + "); END");
+
+            db.execSQL("CREATE TRIGGER notes_fts_update AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " ON " + NotePad.Notes.TABLE_NAME
+                    + " BEGIN UPDATE " + SEARCH_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " = new." + NotePad.Notes.COLUMN_NAME_TITLE
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; END");
+
+            db.execSQL("CREATE TRIGGER notes_fts_delete AFTER DELETE ON "
+                    + NotePad.Notes.TABLE_NAME + " BEGIN "
+                    + "DELETE FROM " + SEARCH_TABLE_NAME
+                    + " WHERE docid = old." + NotePad.Notes._ID + "; "
+                    + "DELETE FROM " + BODY_TABLE_NAME
+                    + " WHERE " + BODY_COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID + "; "
+                    + "DELETE FROM " + CHUNKS_TABLE_NAME
+                    + " WHERE " + BODY_COLUMN_NOTE_ID + " = old." + NotePad.Notes._ID + "; END");
+
+            db.execSQL("CREATE TRIGGER notes_body_fts_insert AFTER INSERT ON "
+                    + BODY_TABLE_NAME + " BEGIN "
+                    + "UPDATE " + SEARCH_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " WHERE docid = new." + BODY_COLUMN_NOTE_ID + "; END");
+
+            db.execSQL("CREATE TRIGGER notes_body_fts_update AFTER UPDATE OF "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " ON " + BODY_TABLE_NAME + " BEGIN "
+                    + "UPDATE " + SEARCH_TABLE_NAME + " SET "
+                    + NotePad.Notes.COLUMN_NAME_NOTE + " = new." + NotePad.Notes.COLUMN_NAME_NOTE
+                    + " WHERE docid = new." + BODY_COLUMN_NOTE_ID + "; END");
+        }
+
         /**
          * 插入示例数据
          */
@@ -187,7 +692,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
                 values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, categories[i]);
 
-                db.insert(NotePad.Notes.TABLE_NAME, null, values);
+                insertNote(db, values);
             }
             Log.i(TAG, "插入 " + titles.length + " 条示例数据");
         }
@@ -199,27 +704,172 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         return true;
     }
 
+    /**
+     * 关闭缓存的预编译语句
+     */
+    @Override
+    public void shutdown() {
+        synchronized (mUpdateStatements) {
+            for (SQLiteStatement statement : mUpdateStatements.values()) {
+                statement.close();
+            }
+            mUpdateStatements.clear();
+        }
+        super.shutdown();
+    }
+
+    /**
+     * 输出笔记缓存的状态、各个操作的统计和最近的慢查询，用于adb shell dumpsys activity provider
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mNoteCache);
+        mStats.dump(writer);
+        mSlowQueries.dump(writer);
+    }
+
+    /**
+     * 测试用，返回笔记缓存
+     */
+    NoteCache getNoteCache() {
+        return mNoteCache;
+    }
+
+    /**
+     * 测试用，设置按_ID更新时在语句执行之后、提交之前执行的操作
+     */
+    void setBeforeCommitForTest(Runnable runnable) {
+        mBeforeCommitForTest = runnable;
+    }
+
+    /**
+     * 测试用，返回缓存的预编译语句数
+     */
+    int getUpdateStatementCountForTest() {
+        synchronized (mUpdateStatements) {
+            return mUpdateStatements.size();
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * 支持取消的查询。调用方取消后，正在执行的SQLite查询和CursorWindow填充会被中断。
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
+        TraceCompat.beginSection("NotePadProvider.query");
+        try {
+            long start = System.nanoTime();
+            Cursor c = queryLocal(uri, projection, selection, selectionArgs, sortOrder,
+                    cancellationSignal);
+            // queryLocal已经填充了第一个CursorWindow
+            int rows = c != null ? c.getCount() : 0;
+            mStats.record(ProviderStats.OP_QUERY, sUriMatcher.match(uri), start, rows, 0);
+            return c;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private Cursor queryLocal(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, CancellationSignal cancellationSignal) {
+
+        // 按_ID查询最近使用的笔记时不访问数据库
+        if (sUriMatcher.match(uri) == NOTE_ID && TextUtils.isEmpty(selection)
+                && NoteCache.canServe(projection)) {
+            Cursor cached = queryCachedNote(Long.parseLong(getNoteId(uri)), projection);
+            if (cached != null) {
+                cached.setNotificationUri(getContext().getContentResolver(), uri);
+                return cached;
+            }
+        }
 
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(NotePad.Notes.TABLE_NAME);
+        qb.setTables(NOTES_WITH_BODY_TABLES);
+
+        // 没有指定排序时使用的排序方式
+        String defaultOrderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+        Uri notificationUri = uri;
+        String limit = null;
 
         switch (sUriMatcher.match(uri)) {
             case NOTES:
                 qb.setProjectionMap(sNotesProjectionMap);
+
+                // 分页查询：只返回limit条，并从上一页最后一条笔记之后开始
+                limit = parseLongParameter(uri, NotePad.Notes.QUERY_PARAMETER_LIMIT);
+                String beforeModified =
+                        parseLongParameter(uri, NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED);
+                String beforeId = parseLongParameter(uri, NotePad.Notes.QUERY_PARAMETER_BEFORE_ID);
+                if (beforeModified != null && beforeId != null) {
+                    // 先用modified <= ?在索引中定位到上一页的末尾，再排除相同修改时间中已经返回的
+                    // 笔记。写成(modified < ? OR (modified = ? AND _id < ?))时SQLite只能从头扫描索引
+                    selection = concatSelection(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                            + " <= ? AND (" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                            + " < ? OR " + NotePad.Notes._ID + " < ?)", selection);
+                    selectionArgs = prependArgs(
+                            new String[] { beforeModified, beforeModified, beforeId },
+                            selectionArgs);
+                }
+                if (limit != null || beforeModified != null) {
+                    defaultOrderBy = NotePad.Notes.PAGED_SORT_ORDER;
+                }
                 break;
 
             case NOTE_ID:
                 qb.setProjectionMap(sNotesProjectionMap);
-                qb.appendWhere(NotePad.Notes._ID + " = " + uri.getPathSegments().get(1));
+                // _ID作为参数绑定，所有笔记共用同样的SQL，连接上预编译的语句可以复用
+                selection = concatSelection(NotePad.Notes._ID + " = ?", selection);
+                selectionArgs = prependArgs(new String[] { getNoteId(uri) }, selectionArgs);
                 break;
 
             case LIVE_FOLDER_NOTES:
+                qb.setTables(NotePad.Notes.TABLE_NAME);
                 qb.setProjectionMap(sLiveFolderProjectionMap);
                 break;
 
+            case NOTES_SEARCH:
+                qb.setProjectionMap(sNotesProjectionMap);
+                String terms = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH);
+                String match = buildMatchQuery(terms);
+                if (match != null) {
+                    /*
+                     * 在FTS表中匹配，按命中次数排序，命中次数相同时较新的笔记在前。
+                     * offsets()对每次命中返回四个以空格分隔的整数，命中次数是整数个数除以4
+                     */
+                    qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN (SELECT docid, (length(o)"
+                            + " - length(replace(o, ' ', '')) + 1) / 4 AS hits FROM"
+                            + " (SELECT docid, offsets(" + SEARCH_TABLE_NAME + ") AS o FROM "
+                            + SEARCH_TABLE_NAME + " WHERE " + SEARCH_TABLE_NAME + " MATCH ?))"
+                            + " AS search ON " + NotePad.Notes.TABLE_NAME + "."
+                            + NotePad.Notes._ID + " = search.docid" + BODY_JOIN);
+                    selectionArgs = prependArgs(new String[] { match }, selectionArgs);
+                    defaultOrderBy = "search.hits DESC, " + NotePad.Notes.DEFAULT_SORT_ORDER;
+                } else if (!TextUtils.isEmpty(terms)) {
+                    // simple分词器不能切分中文等非ASCII文本，此时退回到LIKE匹配。分段存储的
+                    // 内容在note列中为null，在全文检索索引中按docid找到完整的内容再匹配。
+                    // 搜索词中的%和_按字面匹配，用反斜杠转义
+                    String pattern = "%" + escapeLikePattern(terms) + "%";
+                    selection = concatSelection("(" + NotePad.Notes.COLUMN_NAME_TITLE
+                            + LIKE_ESCAPED + " OR " + NotePad.Notes.COLUMN_NAME_NOTE + LIKE_ESCAPED
+                            + " OR (" + BODY_TABLE_NAME + "." + BODY_COLUMN_CHUNKED_LENGTH
+                            + " IS NOT NULL AND EXISTS (SELECT 1 FROM " + SEARCH_TABLE_NAME
+                            + " WHERE docid = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                            + " AND " + SEARCH_TABLE_NAME + "." + NotePad.Notes.COLUMN_NAME_NOTE
+                            + LIKE_ESCAPED + ")))", selection);
+                    selectionArgs = prependArgs(new String[] { pattern, pattern, pattern },
+                            selectionArgs);
+                }
+                // 任何笔记的变化都可能影响搜索结果
+                notificationUri = NotePad.Notes.CONTENT_URI;
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -227,26 +877,138 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // 如果没有指定排序，使用默认排序
         String orderBy;
         if (TextUtils.isEmpty(sortOrder)) {
-            orderBy = NotePad.Notes.DEFAULT_SORT_ORDER;
+            orderBy = defaultOrderBy;
         } else {
             orderBy = sortOrder;
         }
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
-
-        if (c != null) {
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+        long start = System.nanoTime();
+        Cursor c;
+        if (cancellationSignal != null) {
+            c = queryWithSignal(qb, db, projection, selection, selectionArgs, orderBy, limit,
+                    cancellationSignal);
+        } else {
+            c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit);
         }
+        if (c == null) {
+            return null;
+        }
+        c.setNotificationUri(getContext().getContentResolver(), notificationUri);
 
+        // SQLite在填充第一个CursorWindow时才执行查询，返回给其他进程时本来也要在这里填充
+        int rows;
+        try {
+            rows = c.getCount();
+        } catch (RuntimeException e) {
+            c.close();
+            throw e;
+        }
+        long duration = System.nanoTime() - start;
+        if (mSlowQueries.isSlow(duration)) {
+            // 只有慢查询才重新生成SQL并读取查询计划
+            mSlowQueries.record(db,
+                    qb.buildQuery(projection, selection, null, null, orderBy, limit),
+                    selectionArgs, duration, rows);
+        }
         return c;
     }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static Cursor queryWithSignal(SQLiteQueryBuilder qb, SQLiteDatabase db,
+            String[] projection, String selection, String[] selectionArgs, String orderBy,
+            String limit, CancellationSignal cancellationSignal) {
+        return qb.query(db, projection, selection, selectionArgs, null, null, orderBy, limit,
+                cancellationSignal);
+    }
+
+    /**
+     * 读取一个整数查询参数，不存在时返回null
+     */
+    private static String parseLongParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.toString(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri);
+        }
+    }
+
+    /**
+     * 把用户输入的搜索词转换为FTS MATCH表达式。每个词都作为前缀匹配，多个词之间是AND关系。
+     * 如果搜索词为空或含有simple分词器无法切分的非ASCII字符，返回null。
+     */
+    static String buildMatchQuery(String terms) {
+        if (terms == null) {
+            return null;
+        }
+
+        StringBuilder match = new StringBuilder();
+        for (String term : terms.trim().split("\\s+")) {
+            StringBuilder token = new StringBuilder();
+            for (int i = 0; i < term.length(); i++) {
+                char ch = term.charAt(i);
+                if (ch >= 0x80) {
+                    return null;
+                }
+                // 双引号会破坏MATCH语法，直接去掉
+                if (ch != '"') {
+                    token.append(ch);
+                }
+            }
+            if (token.length() == 0) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(token).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * 转义LIKE模式中的反斜杠、%和_，配合LIKE_ESCAPED按字面匹配
+     */
+    static String escapeLikePattern(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    /**
+     * 用AND连接两个查询条件，任意一个为空时返回另一个
+     */
+    private static String concatSelection(String first, String second) {
+        if (TextUtils.isEmpty(first)) {
+            return second;
+        }
+        if (TextUtils.isEmpty(second)) {
+            return first;
+        }
+        return "(" + first + ") AND (" + second + ")";
+    }
+
+    /**
+     * 把额外的参数放到查询参数的前面
+     */
+    private static String[] prependArgs(String[] first, String[] args) {
+        if (args == null || args.length == 0) {
+            return first;
+        }
+        String[] result = new String[first.length + args.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(args, 0, result, first.length, args.length);
+        return result;
+    }
+
     @Override
     public String getType(Uri uri) {
         switch (sUriMatcher.match(uri)) {
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case NOTES_SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             case NOTE_ID:
@@ -259,6 +1021,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
+        long start = System.nanoTime();
+        Uri noteUri = insertLocal(uri, initialValues);
+        mStats.record(ProviderStats.OP_INSERT, sUriMatcher.match(uri), start, 1, 0);
+        return noteUri;
+    }
+
+    private Uri insertLocal(Uri uri, ContentValues initialValues) {
         if (sUriMatcher.match(uri) != NOTES) {
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -270,91 +1039,898 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             values = new ContentValues();
         }
 
-        Long now = Long.valueOf(System.currentTimeMillis());
-
         // 设置默认值
-        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE)) {
-            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
-        }
-        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
-            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
-        }
-        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
-            Resources r = Resources.getSystem();
-            values.put(NotePad.Notes.COLUMN_NAME_TITLE, r.getString(android.R.string.untitled));
-        }
-        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
-            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
-        }
-        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
-            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, "General");
-        }
+        addInsertDefaults(values, System.currentTimeMillis(), getUntitledTitle());
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_NOTE, values);
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = insertNote(db, values);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
 
         if (rowId > 0) {
             Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, rowId);
-            getContext().getContentResolver().notifyChange(noteUri, null);
+            notifyChange(buildChangeUri(rowId, NotePad.Notes.CHANGE_INSERT, null, null));
             return noteUri;
         }
 
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * 在一个事务中插入多条笔记，复用同一条预编译的INSERT语句，全部插入后只通知一次。
+     * 任意一行插入失败时整批回滚。
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int count = bulkInsertLocal(uri, values);
+        mStats.record(ProviderStats.OP_INSERT, sUriMatcher.match(uri), start, count, 0);
+        return count;
+    }
+
+    private int bulkInsertLocal(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        long now = System.currentTimeMillis();
+        String untitled = getUntitledTitle();
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        SQLiteStatement insert = db.compileStatement(BULK_INSERT_SQL);
+        SQLiteStatement insertBody = db.compileStatement(BODY_INSERT_SQL);
+        db.beginTransaction();
+        try {
+            for (ContentValues initialValues : values) {
+                if (!isLargeBody(initialValues.getAsString(NotePad.Notes.COLUMN_NAME_NOTE))
+                        && bindInsertStatement(insert, initialValues, now, untitled)) {
+                    insertBody.bindLong(1, insert.executeInsert());
+                    bindValue(insertBody, 2, initialValues, NotePad.Notes.COLUMN_NAME_NOTE, "");
+                    insertBody.executeInsert();
+                } else {
+                    // 含有预编译语句以外的列（例如_ID），或者内容需要分段存储，按普通方式插入
+                    ContentValues rowValues = new ContentValues(initialValues);
+                    addInsertDefaults(rowValues, now, untitled);
+                    if (insertNote(db, rowValues) <= 0) {
+                        throw new SQLException("Failed to insert row into " + uri);
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+            insertBody.close();
+        }
+
+        if (values.length > 0) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        return values.length;
+    }
+
+    /**
+     * 在一个事务中执行全部操作，各个操作不单独通知，成功后对笔记目录只通知一次
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ContentProviderResult[] results;
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        mApplyingBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.set(Boolean.FALSE);
+            // 各个操作可能修改了任意笔记
+            mNoteCache.clear();
+        }
+
+        if (!operations.isEmpty()) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        return results;
+    }
+
+    /**
+     * 执行提供者方法。METHOD_IMPORT从流中分批导入笔记，导入期间各批不单独通知，
+     * 结束后对笔记目录只通知一次；METHOD_WRITE_NOTE从流中写入一条笔记的内容；
+     * METHOD_GET_STATS返回各个操作的统计；METHOD_GET_SLOW_QUERIES返回最近的慢查询，
+     * METHOD_SET_SLOW_QUERY_THRESHOLD设置慢查询的阈值。
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NotePad.Notes.METHOD_WRITE_NOTE.equals(method)) {
+            long start = System.nanoTime();
+            Bundle result = writeNoteFromStream(arg, extras);
+            mStats.record(ProviderStats.OP_UPDATE, NOTE_ID, start,
+                    result.getInt(NotePad.Notes.WRITE_NOTE_RESULT_COUNT), 0);
+            return result;
+        }
+        if (NotePad.Notes.METHOD_GET_STATS.equals(method)) {
+            return mStats.toBundle();
+        }
+        if (NotePad.Notes.METHOD_GET_SLOW_QUERIES.equals(method)) {
+            return mSlowQueries.toBundle();
+        }
+        if (NotePad.Notes.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            try {
+                mSlowQueries.setThresholdMillis(Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid threshold " + arg);
+            }
+            return null;
+        }
+        if (!NotePad.Notes.METHOD_IMPORT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        Bundle result;
+        mApplyingBatch.set(Boolean.TRUE);
+        try {
+            result = new NoteImporter(this).importNotes(extras);
+        } finally {
+            mApplyingBatch.set(Boolean.FALSE);
+        }
+
+        if (result.getInt(NotePad.Notes.IMPORT_RESULT_IMPORTED) > 0) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+        }
+        return result;
+    }
+
+    /**
+     * 为新笔记中没有给出的列填入默认值
+     */
+    private static void addInsertDefaults(ContentValues values, long now, String untitled) {
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CREATE_DATE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        }
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        }
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, untitled);
+        }
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "");
+        }
+        if (!values.containsKey(NotePad.Notes.COLUMN_NAME_CATEGORY)) {
+            values.put(NotePad.Notes.COLUMN_NAME_CATEGORY, NotePad.Notes.CATEGORY_GENERAL);
+        }
+    }
+
+    /**
+     * 把一行笔记绑定到bulkInsert的预编译语句，没有给出的列使用默认值。
+     * 如果这一行含有语句以外的列，不做绑定并返回false。
+     */
+    private static boolean bindInsertStatement(SQLiteStatement statement, ContentValues values,
+            long now, String untitled) {
+        for (String key : values.keySet()) {
+            if (!isBulkInsertColumn(key)) {
+                return false;
+            }
+        }
+
+        statement.clearBindings();
+        bindValue(statement, 1, values, NotePad.Notes.COLUMN_NAME_TITLE, untitled);
+        bindValue(statement, 2, values, NotePad.Notes.COLUMN_NAME_CREATE_DATE, now);
+        bindValue(statement, 3, values, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+        bindValue(statement, 4, values, NotePad.Notes.COLUMN_NAME_CATEGORY,
+                NotePad.Notes.CATEGORY_GENERAL);
+        statement.bindString(5,
+                makeSnippet(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE)));
+        return true;
+    }
+
+    /**
+     * 由笔记内容生成列表显示的摘要：连续的空白合并为一个空格，去掉首尾的空白，
+     * 最多保留SNIPPET_LENGTH个字符
+     */
+    static String makeSnippet(String note) {
+        if (note == null) {
+            return "";
+        }
+        StringBuilder snippet = new StringBuilder(Math.min(note.length(), SNIPPET_LENGTH));
+        boolean space = false;
+        for (int i = 0; i < note.length() && snippet.length() < SNIPPET_LENGTH; i++) {
+            char ch = note.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                space = snippet.length() > 0;
+                continue;
+            }
+            if (space) {
+                if (snippet.length() + 1 >= SNIPPET_LENGTH) {
+                    break;
+                }
+                snippet.append(' ');
+                space = false;
+            }
+            snippet.append(ch);
+        }
+
+        // 不在代理对的中间截断
+        int length = snippet.length();
+        if (length > 0 && Character.isHighSurrogate(snippet.charAt(length - 1))) {
+            snippet.setLength(length - 1);
+        }
+        return snippet.toString();
+    }
+
+    /**
+     * 一次更新实际改变的列。调用方给出的摘要被忽略，修改内容时摘要也随之改变。
+     */
+    private static Set<String> getChangedColumns(ContentValues values) {
+        Set<String> columns = new HashSet<String>(values.keySet());
+        columns.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        if (columns.contains(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            columns.add(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        }
+        return columns;
+    }
+
+    /**
+     * 插入一条笔记：内容写入内容表，其他列写入notes表。调用方负责开启事务。
+     *
+     * @return 新笔记的_ID，插入失败时为-1
+     */
+    static long insertNote(SQLiteDatabase db, ContentValues values) {
+        ContentValues row = new ContentValues(values);
+        String note = row.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+        row.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+        row.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(note));
+
+        long rowId = db.insert(NotePad.Notes.TABLE_NAME, NotePad.Notes.COLUMN_NAME_TITLE, row);
+        if (rowId > 0) {
+            if (note == null) {
+                note = "";
+            }
+            ContentValues body = new ContentValues();
+            body.put(BODY_COLUMN_NOTE_ID, rowId);
+            boolean large = putBody(body, note);
+            db.insertOrThrow(BODY_TABLE_NAME, null, body);
+            if (large) {
+                writeChunks(db, rowId, note);
+            }
+        }
+        return rowId;
+    }
+
+    /**
+     * 内容是否超过LARGE_NOTE_LENGTH个字符，需要分段存储。和SQLite的length()一样按字符计数，
+     * 与note_length列一致
+     */
+    private static boolean isLargeBody(String note) {
+        return note != null && note.length() > NotePad.Notes.LARGE_NOTE_LENGTH
+                && note.codePointCount(0, note.length()) > NotePad.Notes.LARGE_NOTE_LENGTH;
+    }
+
+    /**
+     * 把内容放入内容表的一行。需要分段存储时note列为null，chunked_length是字符数，
+     * 各段由调用方用writeChunks写入
+     *
+     * @return 内容是否需要分段存储
+     */
+    private static boolean putBody(ContentValues body, String note) {
+        if (isLargeBody(note)) {
+            body.putNull(NotePad.Notes.COLUMN_NAME_NOTE);
+            body.put(BODY_COLUMN_CHUNKED_LENGTH, note.codePointCount(0, note.length()));
+            return true;
+        }
+        body.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+        body.putNull(BODY_COLUMN_CHUNKED_LENGTH);
+        return false;
+    }
+
+    /**
+     * 把大内容按BODY_CHUNK_LENGTH个字符一段写入分段内容表，替换这条笔记原有的各段，
+     * 再把完整的内容写入全文检索索引。调用方负责开启事务。
+     */
+    private static void writeChunks(SQLiteDatabase db, long noteId, String note) {
+        db.execSQL(CHUNKS_DELETE_SQL, new Object[] { noteId });
+        SQLiteStatement insert = db.compileStatement(CHUNKS_INSERT_SQL);
+        try {
+            int start = 0;
+            for (int seq = 0; start < note.length(); seq++) {
+                int end = Math.min(start + BODY_CHUNK_LENGTH, note.length());
+                // 代理对不能分在两段中，否则各段单独绑定时会被替换
+                if (end < note.length() && Character.isHighSurrogate(note.charAt(end - 1))) {
+                    end--;
+                }
+                insert.bindLong(1, noteId);
+                insert.bindLong(2, seq);
+                insert.bindString(3, note.substring(start, end));
+                insert.executeInsert();
+                start = end;
+            }
+        } finally {
+            insert.close();
+        }
+
+        SQLiteStatement search = db.compileStatement(SEARCH_NOTE_UPDATE_SQL);
+        try {
+            search.bindString(1, note);
+            search.bindLong(2, noteId);
+            search.executeUpdateDelete();
+        } finally {
+            search.close();
+        }
+    }
+
+    /**
+     * 更新笔记：内容写入内容表，其他列写入notes表，两者在同一个事务中。
+     *
+     * @param where notes和内容表连接后的条件，为空时更新所有笔记
+     * @return 更新的笔记数
+     */
+    private static int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        ContentValues row = new ContentValues(values);
+        row.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        ContentValues body = null;
+        String note = null;
+        boolean large = false;
+        if (row.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            note = row.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            body = new ContentValues();
+            large = putBody(body, note);
+            row.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            // 摘要和内容一起更新
+            row.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(note));
+        }
+
+        int count = 0;
+        db.beginTransaction();
+        try {
+            String notesWhere = null;
+            String bodyWhere = null;
+            if (!TextUtils.isEmpty(where)) {
+                // 先选出要更新的笔记，条件可能引用两条UPDATE会修改的列，只能求值一次
+                db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + UPDATE_IDS_TABLE_NAME
+                        + " (id INTEGER PRIMARY KEY)");
+                db.delete(UPDATE_IDS_TABLE_NAME, null, null);
+                String select = "INSERT INTO " + UPDATE_IDS_TABLE_NAME + " SELECT "
+                        + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " FROM "
+                        + NOTES_WITH_BODY_TABLES + " WHERE " + where;
+                if (whereArgs != null) {
+                    db.execSQL(select, whereArgs);
+                } else {
+                    db.execSQL(select);
+                }
+                String ids = " IN (SELECT id FROM " + UPDATE_IDS_TABLE_NAME + ")";
+                notesWhere = NotePad.Notes._ID + ids;
+                bodyWhere = BODY_COLUMN_NOTE_ID + ids;
+            }
+
+            if (body != null) {
+                count = db.update(BODY_TABLE_NAME, body, bodyWhere, null);
+                if (large) {
+                    Cursor c = db.query(BODY_TABLE_NAME, new String[] { BODY_COLUMN_NOTE_ID },
+                            bodyWhere, null, null, null, null);
+                    try {
+                        while (c.moveToNext()) {
+                            writeChunks(db, c.getLong(0), note);
+                        }
+                    } finally {
+                        c.close();
+                    }
+                } else {
+                    // 原来分段存储的笔记不再需要各段
+                    db.delete(CHUNKS_TABLE_NAME, bodyWhere, null);
+                }
+            }
+            if (row.size() > 0) {
+                count = db.update(NotePad.Notes.TABLE_NAME, row, notesWhere, null);
+            }
+            if (notesWhere != null) {
+                db.delete(UPDATE_IDS_TABLE_NAME, null, null);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    /**
+     * 按_ID更新一条笔记，规则和updateNotes相同，但使用缓存的预编译语句，只绑定新的值和_ID
+     *
+     * @return 更新的笔记数
+     */
+    private int updateNoteById(SQLiteDatabase db, ContentValues values, long noteId) {
+        ContentValues row = new ContentValues(values);
+        row.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        boolean hasBody = row.containsKey(NotePad.Notes.COLUMN_NAME_NOTE);
+        String note = null;
+        ContentValues body = new ContentValues();
+        boolean large = false;
+        if (hasBody) {
+            note = row.getAsString(NotePad.Notes.COLUMN_NAME_NOTE);
+            large = putBody(body, note);
+            row.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+            // 摘要和内容一起更新
+            row.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(note));
+        }
+
+        // 在applyBatch的事务中时，外层事务可能回滚，不把新的值写入缓存
+        boolean nested = db.inTransaction();
+        int count = 0;
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            // 事务开始后本线程独占写连接，持有锁时不会再等待连接
+            synchronized (mUpdateStatements) {
+                SQLiteStatement statement;
+                if (hasBody) {
+                    statement = getUpdateStatement(db, BODY_UPDATE_SQL);
+                    statement.clearBindings();
+                    bindValue(statement, 1, body, NotePad.Notes.COLUMN_NAME_NOTE, null);
+                    bindValue(statement, 2, body, BODY_COLUMN_CHUNKED_LENGTH, null);
+                    statement.bindLong(3, noteId);
+                    count = statement.executeUpdateDelete();
+                    if (count > 0 && large) {
+                        writeChunks(db, noteId, note);
+                    } else if (count > 0) {
+                        // 原来分段存储时删除各段，否则只是一次索引查找
+                        statement = getUpdateStatement(db, CHUNKS_DELETE_SQL);
+                        statement.clearBindings();
+                        statement.bindLong(1, noteId);
+                        statement.executeUpdateDelete();
+                    }
+                }
+                if (row.size() > 0) {
+                    // 列按名称排序，同一组列总是得到同样的SQL
+                    List<String> columns = new ArrayList<String>(row.keySet());
+                    Collections.sort(columns);
+                    StringBuilder sql = new StringBuilder("UPDATE ")
+                            .append(NotePad.Notes.TABLE_NAME).append(" SET ");
+                    for (int i = 0; i < columns.size(); i++) {
+                        sql.append(i > 0 ? ", " : "").append(columns.get(i)).append(" = ?");
+                    }
+                    sql.append(" WHERE ").append(NotePad.Notes._ID).append(" = ?");
+
+                    statement = getUpdateStatement(db, sql.toString());
+                    statement.clearBindings();
+                    for (int i = 0; i < columns.size(); i++) {
+                        bindValue(statement, i + 1, row, columns.get(i), null);
+                    }
+                    statement.bindLong(columns.size() + 1, noteId);
+                    count = statement.executeUpdateDelete();
+                }
+            }
+            if (mBeforeCommitForTest != null) {
+                mBeforeCommitForTest.run();
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            /*
+             * 缓存在提交之后才更新，提交前读到旧行的查询不会在更新之后放入缓存。持有锁直到
+             * 缓存更新完：下一个写入只有在本事务结束后才能开始，它更新缓存时要等这里结束，
+             * 所以缓存的修改顺序和提交顺序一致。
+             */
+            synchronized (mCacheCommitLock) {
+                boolean committed = false;
+                try {
+                    db.endTransaction();
+                    committed = successful && !nested;
+                } finally {
+                    if (committed && count > 0) {
+                        ContentValues cached = new ContentValues(row);
+                        if (hasBody) {
+                            cached.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
+                        }
+                        mNoteCache.update(noteId, cached);
+                    } else {
+                        // 没有提交，或者外层事务还可能回滚
+                        mNoteCache.remove(noteId);
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 返回缓存的预编译语句，没有时编译并缓存。调用方持有mUpdateStatements的锁。
+     * 可以更新的列只有几个，语句的数量有上限。
+     */
+    private SQLiteStatement getUpdateStatement(SQLiteDatabase db, String sql) {
+        SQLiteStatement statement = mUpdateStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mUpdateStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * 从缓存中读取一条笔记，不在缓存中时从数据库读出整行并放入缓存。笔记不存在，
+     * 或者需要的内容太长没有缓存时返回null，由普通的查询处理
+     */
+    private Cursor queryCachedNote(long noteId, String[] projection) {
+        Cursor cached = mNoteCache.query(noteId, projection);
+        if (cached != null) {
+            return cached;
+        }
+
+        long generation = mNoteCache.getGeneration();
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(CACHE_ROW_SQL, new String[] { Long.toString(noteId) });
+        NoteCache.Row row;
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            Object[] values = new Object[NoteCache.COLUMNS.length];
+            for (int i = 0; i < values.length; i++) {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        values[i] = null;
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        values[i] = c.getLong(i);
+                        break;
+                    default:
+                        values[i] = c.getString(i);
+                        break;
+                }
+            }
+            int lengthIndex = NoteCache.COLUMN_INDEX_NOTE_LENGTH;
+            row = new NoteCache.Row(values, c.isNull(lengthIndex)
+                    || c.getLong(lengthIndex) <= NoteCache.MAX_NOTE_LENGTH);
+        } finally {
+            c.close();
+        }
+        mNoteCache.put(noteId, row, generation);
+        return NoteCache.newCursor(row, projection);
+    }
+
+    /**
+     * 笔记ID URI中的_ID
+     */
+    private static String getNoteId(Uri uri) {
+        return uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION);
+    }
+
+    /**
+     * 把调用方的条件转换为按笔记_ID筛选的条件。条件中可以使用note列，它在内容表中。
+     *
+     * @param column notes表的_ID列或内容表的note_id列
+     * @return 条件为空时返回null，即选中所有笔记
+     */
+    private static String selectNoteIds(String column, String where) {
+        if (TextUtils.isEmpty(where)) {
+            return null;
+        }
+        return column + " IN (SELECT " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+                + " FROM " + NOTES_WITH_BODY_TABLES + " WHERE " + where + ")";
+    }
+
+    /**
+     * 把一条笔记的内容写入writer。内容和各段由同一个查询读出：内容在note列中时只有一行，
+     * 分段存储时按seq的顺序每段一行，不会把整个内容读成一个字符串
+     */
+    private void writeNoteBody(Writer writer, long noteId) throws IOException {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String id = Long.toString(noteId);
+        Cursor c = db.rawQuery(BODY_READ_SQL, new String[] { id, id });
+        try {
+            while (c.moveToNext()) {
+                writer.write(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 读出一条笔记的完整内容，分段存储的内容在这里拼接。笔记不存在时返回null
+     */
+    String readNote(long noteId) {
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        String id = Long.toString(noteId);
+        Cursor c = db.rawQuery(BODY_READ_SQL, new String[] { id, id });
+        try {
+            if (!c.moveToFirst()) {
+                return null;
+            }
+            if (c.getCount() == 1) {
+                return c.getString(0);
+            }
+            StringBuilder note = new StringBuilder();
+            do {
+                note.append(c.getString(0));
+            } while (c.moveToNext());
+            return note.toString();
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * 执行METHOD_WRITE_NOTE：先读完整个流，再在一个短事务中写入内容，大内容分段存储。
+     * 摘要、修改时间和extras中的其他列在同一个事务中更新，读取失败时笔记保持不变，
+     * 并在结果中返回错误。
+     *
+     * @return 更新的笔记数，读取失败时还有错误的描述
+     */
+    private Bundle writeNoteFromStream(String noteUri, Bundle extras) {
+        Uri uri = noteUri != null ? Uri.parse(noteUri) : null;
+        if (uri == null || sUriMatcher.match(uri) != NOTE_ID) {
+            throw new IllegalArgumentException("Unknown URI " + noteUri);
+        }
+        ParcelFileDescriptor file = extras != null
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_FILE)
+                : null;
+        if (file == null) {
+            throw new IllegalArgumentException("Missing " + NotePad.Notes.WRITE_NOTE_EXTRA_FILE);
+        }
+        long noteId = Long.parseLong(getNoteId(uri));
+        String[] idArgs = new String[] { Long.toString(noteId) };
+
+        // 和内容一起更新的其他列，内容和摘要由流决定
+        ContentValues values = (ContentValues) extras.getParcelable(
+                NotePad.Notes.WRITE_NOTE_EXTRA_VALUES);
+        ContentValues row = values != null ? new ContentValues(values) : new ContentValues();
+        row.remove(NotePad.Notes.COLUMN_NAME_NOTE);
+        row.remove(NotePad.Notes.COLUMN_NAME_SNIPPET);
+        if (!row.containsKey(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)) {
+            row.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        }
+
+        // 在事务之外读完流，写入方再慢也不会让写事务一直持有数据库的写锁
+        String note;
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(new ParcelFileDescriptor.AutoCloseInputStream(file),
+                    "UTF-8");
+            note = readFully(reader);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read the content of " + uri, e);
+            Bundle result = new Bundle();
+            result.putInt(NotePad.Notes.WRITE_NOTE_RESULT_COUNT, 0);
+            result.putString(NotePad.Notes.WRITE_NOTE_RESULT_ERROR, e.toString());
+            return result;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                } else {
+                    file.close();
+                }
+            } catch (IOException e) {
+                // 忽略关闭异常
+            }
+        }
+
+        ContentValues body = new ContentValues();
+        boolean large = putBody(body, note);
+        row.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(note));
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int count;
+        db.beginTransaction();
+        try {
+            count = db.update(BODY_TABLE_NAME, body, BODY_COLUMN_NOTE_ID + " = ?", idArgs);
+            if (count > 0) {
+                if (large) {
+                    writeChunks(db, noteId, note);
+                } else {
+                    db.delete(CHUNKS_TABLE_NAME, BODY_COLUMN_NOTE_ID + " = ?", idArgs);
+                }
+                db.update(NotePad.Notes.TABLE_NAME, row, NotePad.Notes._ID + " = ?", idArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mNoteCache.remove(noteId);
+        }
+
+        if (count > 0) {
+            Set<String> columns = new HashSet<String>(row.keySet());
+            columns.add(NotePad.Notes.COLUMN_NAME_NOTE);
+            notifyChange(buildChangeUri(noteId, NotePad.Notes.CHANGE_UPDATE, columns,
+                    row.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE)));
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(NotePad.Notes.WRITE_NOTE_RESULT_COUNT, count);
+        return result;
+    }
+
+    /**
+     * 读出流中的全部字符
+     */
+    private static String readFully(Reader reader) throws IOException {
+        StringBuilder text = new StringBuilder();
+        char[] buffer = new char[BODY_CHUNK_LENGTH];
+        int count;
+        while ((count = reader.read(buffer)) >= 0) {
+            text.append(buffer, 0, count);
+        }
+        return text.toString();
+    }
+
+    private static boolean isBulkInsertColumn(String column) {
+        for (String bulkColumn : BULK_INSERT_COLUMNS) {
+            if (bulkColumn.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 按ContentValues中值的类型绑定参数，和SQLiteDatabase.insert的绑定规则一致
+     */
+    private static void bindValue(SQLiteStatement statement, int index, ContentValues values,
+            String column, Object defaultValue) {
+        Object value = values.containsKey(column) ? values.get(column) : defaultValue;
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * 没有标题的笔记使用的默认标题
+     */
+    private static String getUntitledTitle() {
+        return Resources.getSystem().getString(android.R.string.untitled);
+    }
+
+    /**
+     * 构造单条笔记的变化通知URI，例如notes/5?change=update&amp;columns=title,modified。
+     * 观察者可以据此只更新这一条笔记，或者忽略不关心的列的变化。
+     *
+     * @param columns 更新时变化的列，其他变化为null
+     * @param modified 更新时写入的修改时间，没有写入时为null
+     */
+    static Uri buildChangeUri(long noteId, String change, Set<String> columns, Long modified) {
+        Uri.Builder builder = ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, noteId)
+                .buildUpon()
+                .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE, change);
+        if (columns != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGED_COLUMNS,
+                    TextUtils.join(",", columns));
+        }
+        if (modified != null) {
+            builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGED_MODIFIED,
+                    modified.toString());
+        }
+        return builder.build();
+    }
+
+    /**
+     * 通知笔记数据的变化。applyBatch和导入执行期间不单独通知，结束时统一通知。
+     */
+    private void notifyChange(Uri uri) {
+        boolean suppressed = Boolean.TRUE.equals(mApplyingBatch.get());
+        mStats.recordNotification(suppressed);
+        if (suppressed) {
+            return;
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
+        long start = System.nanoTime();
+        int count = deleteLocal(uri, where, whereArgs);
+        mStats.record(ProviderStats.OP_DELETE, sUriMatcher.match(uri), start, count, 0);
+        return count;
+    }
+
+    private int deleteLocal(Uri uri, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
+        Uri changeUri;
 
         switch (sUriMatcher.match(uri)) {
             case NOTES:
-                count = db.delete(NotePad.Notes.TABLE_NAME, where, whereArgs);
+                // 笔记的内容由触发器删除
+                count = db.delete(NotePad.Notes.TABLE_NAME,
+                        selectNoteIds(NotePad.Notes._ID, where), whereArgs);
+                mNoteCache.clear();
+                // 可能删除了多条笔记，通知整个笔记目录
+                changeUri = NotePad.Notes.CONTENT_URI;
                 break;
 
             case NOTE_ID:
-                String noteId = uri.getPathSegments().get(1);
-                finalWhere = NotePad.Notes._ID + " = " + noteId;
+                String noteId = getNoteId(uri);
+                finalWhere = NotePad.Notes._ID + " = ?";
                 if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+                    finalWhere = selectNoteIds(NotePad.Notes._ID, finalWhere + " AND " + where);
                 }
-                count = db.delete(NotePad.Notes.TABLE_NAME, finalWhere, whereArgs);
+                count = db.delete(NotePad.Notes.TABLE_NAME, finalWhere,
+                        prependArgs(new String[] { noteId }, whereArgs));
+                mNoteCache.remove(Long.parseLong(noteId));
+                changeUri = buildChangeUri(Long.parseLong(noteId), NotePad.Notes.CHANGE_DELETE,
+                        null, null);
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        // 没有删除任何笔记时不通知
+        if (count > 0) {
+            notifyChange(changeUri);
+        }
         return count;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
+        TraceCompat.beginSection("NotePadProvider.update");
+        try {
+            long start = System.nanoTime();
+            int count = updateLocal(uri, values, where, whereArgs);
+            mStats.record(ProviderStats.OP_UPDATE, sUriMatcher.match(uri), start, count, 0);
+            return count;
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    private int updateLocal(Uri uri, ContentValues values, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
         String finalWhere;
+        Uri changeUri;
 
         switch (sUriMatcher.match(uri)) {
             case NOTES:
-                count = db.update(NotePad.Notes.TABLE_NAME, values, where, whereArgs);
+                count = updateNotes(db, values, where, whereArgs);
+                mNoteCache.clear();
+                // 可能更新了多条笔记，通知整个笔记目录
+                changeUri = NotePad.Notes.CONTENT_URI;
                 break;
 
             case NOTE_ID:
-                String noteId = uri.getPathSegments().get(1);
-                finalWhere = NotePad.Notes._ID + " = " + noteId;
-                if (where != null) {
-                    finalWhere = finalWhere + " AND " + where;
+                String noteId = getNoteId(uri);
+                if (where == null) {
+                    // 编辑器保存时走这里，使用缓存的预编译语句
+                    count = updateNoteById(db, values, Long.parseLong(noteId));
+                } else {
+                    finalWhere = NotePad.Notes._ID + " = ? AND " + where;
+                    count = updateNotes(db, values, finalWhere,
+                            prependArgs(new String[] { noteId }, whereArgs));
+                    mNoteCache.remove(Long.parseLong(noteId));
                 }
-                count = db.update(NotePad.Notes.TABLE_NAME, values, finalWhere, whereArgs);
+                changeUri = buildChangeUri(Long.parseLong(noteId), NotePad.Notes.CHANGE_UPDATE,
+                        getChangedColumns(values),
+                        values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE));
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        // 没有更新任何笔记时不通知
+        if (count > 0) {
+            notifyChange(changeUri);
+        }
         return count;
     }
 
@@ -364,6 +1940,8 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         switch (sUriMatcher.match(uri)) {
             case NOTE_ID:
                 return NOTE_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+            case NOTES:
+                return EXPORT_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
             default:
                 return null;
         }
@@ -374,6 +1952,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             throws FileNotFoundException {
 
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            // 导出在管道线程上分批查询，这里不查询
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, null,
+                            new NoteExporter(this, mStats)),
+                    0, AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
         if (mimeTypes != null) {
             Cursor c = query(uri, READ_NOTE_PROJECTION, null, null, null);
 
@@ -390,23 +1975,83 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
     }
 
+    /**
+     * 以只读方式打开笔记ID URI时，返回一个管道，在管道线程上按段写入这条笔记的内容（UTF-8），
+     * 编辑器用它分段加载很长的笔记
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != NOTE_ID || !"r".equals(mode)) {
+            throw new FileNotFoundException("Unable to open " + uri + " in mode " + mode);
+        }
+        Cursor c = query(uri, READ_NOTE_PROJECTION, null, null, null);
+        long noteId;
+        try {
+            if (c == null || !c.moveToFirst()) {
+                throw new FileNotFoundException("Unable to query " + uri);
+            }
+            noteId = c.getLong(READ_NOTE_ID_INDEX);
+        } finally {
+            if (c != null) c.close();
+        }
+        return openPipeHelper(uri, ClipDescription.MIMETYPE_TEXT_PLAIN, null, noteId,
+                mBodyWriter);
+    }
+
+    // 把笔记内容写入openFile返回的管道
+    private final PipeDataWriter<Long> mBodyWriter = new PipeDataWriter<Long>() {
+        @Override
+        public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                Bundle opts, Long noteId) {
+            long start = System.nanoTime();
+            Writer writer = null;
+            NoteExporter.CountingOutputStream fout = new NoteExporter.CountingOutputStream(
+                    new FileOutputStream(output.getFileDescriptor()));
+            try {
+                writer = new OutputStreamWriter(fout, "UTF-8");
+                writeNoteBody(writer, noteId);
+                writer.flush();
+            } catch (IOException e) {
+                // 读取方提前关闭了管道
+                Log.w(TAG, "Reading " + uri + " stopped", e);
+            } finally {
+                // 在关闭前记录，读取方读到结尾时统计已经更新
+                mStats.record(ProviderStats.OP_STREAM, NOTE_ID, start, 1, fout.getCount());
+                try {
+                    if (writer != null) {
+                        writer.close();
+                    } else {
+                        fout.close();
+                    }
+                } catch (IOException e) {
+                    // 忽略关闭异常
+                }
+            }
+        }
+    };
+
     @Override
     public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
                                 Bundle opts, Cursor c) {
-        FileOutputStream fout = new FileOutputStream(output.getFileDescriptor());
+        long start = System.nanoTime();
+        NoteExporter.CountingOutputStream fout = new NoteExporter.CountingOutputStream(
+                new FileOutputStream(output.getFileDescriptor()));
         PrintWriter pw = null;
         try {
             pw = new PrintWriter(new OutputStreamWriter(fout, "UTF-8"));
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
-            pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+            // 内容在管道线程上分段读取，打开管道时只确认笔记存在
+            writeNoteBody(pw, c.getLong(READ_NOTE_ID_INDEX));
+            pw.println();
+        } catch (IOException e) {
             Log.w(TAG, "编码错误", e);
         } finally {
             c.close();
             if (pw != null) {
                 pw.flush();
             }
+            mStats.record(ProviderStats.OP_STREAM, NOTE_ID, start, 1, fout.getCount());
             try {
                 fout.close();
             } catch (IOException e) {
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.res.ColorStateList;
+import android.graphics.Color;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.GradientDrawable;
+import android.support.v4.os.TraceCompat;
+import android.text.TextUtils;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Binds a note to a row of the notes list (R.layout.noteslist_item).
+ *
+ * Everything that is the same for every row is prepared once: the category badge backgrounds
+ * are built per category and shared through their {@link Drawable.ConstantState}, and the text
+ * colors and badge padding are applied when the row is created. Each {@link ViewHolder} keeps
+ * the badge drawables it has already used, so binding a recycled row only sets text and swaps
+ * backgrounds, and does not allocate once every category has been shown in it.
+ */
+public class NoteRowBinder {
+
+    /**
+     * 分类的存储值，下标与显示名称、颜色一一对应。未知分类按通用处理。
+     */
+    static final String[] CATEGORIES = {
+            NotePad.Notes.CATEGORY_GENERAL,
+            NotePad.Notes.CATEGORY_WORK,
+            NotePad.Notes.CATEGORY_PERSONAL,
+            NotePad.Notes.CATEGORY_IDEAS
+    };
+
+    private static final String[] CATEGORY_DISPLAY_NAMES = {
+            "通用",
+            "工作",
+            "个人",
+            "想法"
+    };
+
+    private static final int[] CATEGORY_COLORS = {
+            0xFF757575, // 灰色
+            0xFF2196F3, // 蓝色
+            0xFF4CAF50, // 绿色
+            0xFFFF9800  // 橙色
+    };
+
+    // 分类标签的圆角半径和内边距（像素）
+    private static final float BADGE_CORNER_RADIUS = 12;
+    private static final int BADGE_PADDING_HORIZONTAL = 8;
+    private static final int BADGE_PADDING_VERTICAL = 4;
+
+    private final TimestampFormatter mTimestampFormatter;
+    private final ColorStateList mTimeColor;
+    private final ColorStateList mBadgeTextColor = ColorStateList.valueOf(Color.WHITE);
+
+    // 每个分类一个标签背景，各行通过ConstantState共用
+    private final Drawable.ConstantState[] mBadgeStates =
+            new Drawable.ConstantState[CATEGORIES.length];
+
+    /**
+     * 列表项中的视图，以及这一行已经创建过的分类标签背景
+     */
+    public static final class ViewHolder {
+        final TextView title;
+        final TextView snippet;
+        final TextView time;
+        final TextView category;
+        final Drawable[] badges = new Drawable[CATEGORIES.length];
+        int boundCategory = -1;
+
+        ViewHolder(View row) {
+            title = (TextView) row.findViewById(android.R.id.text1);
+            snippet = (TextView) row.findViewById(R.id.text_snippet);
+            time = (TextView) row.findViewById(android.R.id.text2);
+            category = (TextView) row.findViewById(R.id.text_category);
+        }
+    }
+
+    /**
+     * @param timeColor 修改时间的文字颜色，随主题变化
+     */
+    public NoteRowBinder(TimestampFormatter timestampFormatter, int timeColor) {
+        mTimestampFormatter = timestampFormatter;
+        mTimeColor = ColorStateList.valueOf(timeColor);
+
+        for (int i = 0; i < CATEGORIES.length; i++) {
+            GradientDrawable shape = new GradientDrawable();
+            shape.setShape(GradientDrawable.RECTANGLE);
+            shape.setCornerRadius(BADGE_CORNER_RADIUS);
+            shape.setColor(CATEGORY_COLORS[i]);
+            mBadgeStates[i] = shape.getConstantState();
+        }
+    }
+
+    /**
+     * 为新创建的列表项建立ViewHolder，并设置所有行都相同的样式
+     */
+    public ViewHolder createViewHolder(View row) {
+        ViewHolder holder = new ViewHolder(row);
+        holder.time.setTextColor(mTimeColor);
+        holder.category.setTextColor(mBadgeTextColor);
+        holder.category.setPadding(BADGE_PADDING_HORIZONTAL, BADGE_PADDING_VERTICAL,
+                BADGE_PADDING_HORIZONTAL, BADGE_PADDING_VERTICAL);
+        row.setTag(holder);
+        return holder;
+    }
+
+    /**
+     * 把一条笔记绑定到列表项
+     *
+     * @param snippet 内容摘要，为空时隐藏摘要行
+     * @param now 当前时间，用于显示相对时间
+     */
+    public void bind(ViewHolder holder, String title, String snippet, long modified,
+            String category, long now) {
+        TraceCompat.beginSection("NoteRowBinder.bind");
+        try {
+            holder.title.setText(title);
+            if (TextUtils.isEmpty(snippet)) {
+                holder.snippet.setVisibility(View.GONE);
+            } else {
+                holder.snippet.setText(snippet);
+                holder.snippet.setVisibility(View.VISIBLE);
+            }
+            bindTime(holder, modified, now);
+
+            int index = getCategoryIndex(category);
+            if (holder.boundCategory != index) {
+                holder.category.setText(CATEGORY_DISPLAY_NAMES[index]);
+                Drawable badge = holder.badges[index];
+                if (badge == null) {
+                    badge = mBadgeStates[index].newDrawable();
+                    holder.badges[index] = badge;
+                }
+                holder.category.setBackground(badge);
+                holder.boundCategory = index;
+            }
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * 只更新修改时间，用于定时刷新相对时间
+     */
+    public void bindTime(ViewHolder holder, long modified, long now) {
+        holder.time.setText(mTimestampFormatter.format(modified, now));
+    }
+
+    /**
+     * 返回分类在CATEGORIES中的下标，null或未知分类返回通用分类的下标0
+     */
+    static int getCategoryIndex(String category) {
+        if (category != null) {
+            for (int i = 1; i < CATEGORIES.length; i++) {
+                if (CATEGORIES[i].equals(category)) {
+                    return i;
+                }
+            }
+        }
+        return 0;
+    }
+
+    static String getCategoryDisplayName(String category) {
+        return CATEGORY_DISPLAY_NAMES[getCategoryIndex(category)];
+    }
+
+    static int getCategoryColor(String category) {
+        return CATEGORY_COLORS[getCategoryIndex(category)];
+    }
+}
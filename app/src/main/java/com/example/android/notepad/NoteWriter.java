@@ -0,0 +1,298 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.support.v4.os.TraceCompat;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes note changes to the provider on a single background thread, so saving a long note never
+ * blocks the UI thread. Writes are applied in the order they are submitted.
+ *
+ * Updates to the same note are coalesced: while an update is still waiting for the writer thread,
+ * further updates are merged into it, and only the newest value of each column is written.
+ * Writing the content or deleting the note ends the merge, so later updates are queued after it
+ * and never written before it.
+ * The content of a large note is written as a stream with {@link #writeBody}, without building
+ * one string of the whole text.
+ *
+ * A write that fails is reported to the registered {@link OnWriteFailedListener}s on the main
+ * thread, so the editor can keep the note marked as unsaved.
+ */
+final class NoteWriter {
+    private static final String TAG = "NoteWriter";
+
+    private static NoteWriter sInstance;
+
+    /**
+     * 接收写入失败的通知，在主线程上调用
+     */
+    interface OnWriteFailedListener {
+        /**
+         * @param uri 没有保存的笔记
+         */
+        void onWriteFailed(Uri uri);
+    }
+
+    private final ContentResolver mResolver;
+
+    // 唯一的写线程，保证同一条笔记的写入按提交顺序执行
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, TAG);
+                }
+            });
+
+    // 每条笔记排在队列最后、还可以合并的那次更新。由this保护，
+    // 从这里移除后不再合并，写线程执行时值不再变化
+    private final Map<Uri, ContentValues> mPending = new HashMap<Uri, ContentValues>();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 由this保护
+    private final List<OnWriteFailedListener> mListeners = new ArrayList<OnWriteFailedListener>();
+
+    private NoteWriter(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * 返回进程内共用的写入器。Activity结束后排队的写入仍会完成。
+     */
+    static synchronized NoteWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteWriter(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    synchronized void addOnWriteFailedListener(OnWriteFailedListener listener) {
+        mListeners.add(listener);
+    }
+
+    synchronized void removeOnWriteFailedListener(OnWriteFailedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * 在后台更新一条笔记。如果这条笔记排在最后的是一次还没执行的更新，新的值合并到那次更新中。
+     */
+    void update(final Uri uri, ContentValues values) {
+        final ContentValues pending;
+        synchronized (this) {
+            ContentValues last = mPending.get(uri);
+            if (last != null) {
+                last.putAll(values);
+                return;
+            }
+            pending = new ContentValues(values);
+            mPending.put(uri, pending);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                writePending(uri, pending);
+            }
+        });
+    }
+
+    /**
+     * 在后台把大笔记的内容通过管道写入提供者，values中的其他列在同一个事务中更新。
+     *
+     * @param chunks 内容按顺序分成的几段，调用后不能再修改
+     */
+    void writeBody(final Uri uri, final List<char[]> chunks, final ContentValues values) {
+        synchronized (this) {
+            // 之前排队的更新仍在内容之前写入，之后的更新不能再合并到它里面
+            mPending.remove(uri);
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                TraceCompat.beginSection("NoteWriter.writeBody");
+                try {
+                    streamBody(uri, chunks, values);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to save " + uri, e);
+                    reportFailure(uri);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to save " + uri, e);
+                    reportFailure(uri);
+                } finally {
+                    TraceCompat.endSection();
+                }
+            }
+        });
+    }
+
+    /**
+     * 在另一个线程把各段写入管道，本线程在METHOD_WRITE_NOTE中读取管道并提交，
+     * 返回时内容已经写入数据库
+     */
+    private void streamBody(Uri uri, final List<char[]> chunks, ContentValues values)
+            throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final ParcelFileDescriptor output = pipe[1];
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                Writer writer = null;
+                try {
+                    writer = new BufferedWriter(new OutputStreamWriter(
+                            new ParcelFileDescriptor.AutoCloseOutputStream(output), "UTF-8"));
+                    for (char[] chunk : chunks) {
+                        writer.write(chunk);
+                    }
+                } catch (IOException e) {
+                    // 提供者提前关闭了管道，错误由读取方报告
+                    Log.w(TAG, "Writing the content stopped", e);
+                } finally {
+                    try {
+                        if (writer != null) {
+                            writer.close();
+                        } else {
+                            output.close();
+                        }
+                    } catch (IOException e) {
+                        // 忽略关闭异常
+                    }
+                }
+            }
+        });
+
+        try {
+            Bundle extras = new Bundle();
+            extras.putParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_FILE, pipe[0]);
+            extras.putParcelable(NotePad.Notes.WRITE_NOTE_EXTRA_VALUES, values);
+            Bundle result = mResolver.call(NotePad.Notes.CONTENT_URI,
+                    NotePad.Notes.METHOD_WRITE_NOTE, uri.toString(), extras);
+            String error = result != null
+                    ? result.getString(NotePad.Notes.WRITE_NOTE_RESULT_ERROR)
+                    : "No result";
+            if (error != null) {
+                throw new IOException(error);
+            }
+        } finally {
+            // 关闭读取端，写线程不会一直阻塞
+            pipe[0].close();
+        }
+    }
+
+    /**
+     * 在后台删除一条笔记，还没执行的更新一并丢弃
+     */
+    void delete(final Uri uri) {
+        synchronized (this) {
+            ContentValues pending = mPending.remove(uri);
+            if (pending != null) {
+                pending.clear();
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mResolver.delete(uri, null, null);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to delete " + uri, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 已经提交的写入全部完成后在主线程上执行callback，不阻塞调用的线程。
+     * 只在必须读到最新内容时使用。
+     */
+    void runAfterPendingWrites(final Runnable callback) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mMainHandler.post(callback);
+            }
+        });
+    }
+
+    private void writePending(Uri uri, ContentValues values) {
+        synchronized (this) {
+            if (mPending.get(uri) == values) {
+                mPending.remove(uri);
+            }
+            if (values.size() == 0) {
+                // 笔记已经被删除
+                return;
+            }
+        }
+        TraceCompat.beginSection("NoteWriter.writePending");
+        try {
+            mResolver.update(uri, values, null, null);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to save " + uri, e);
+            reportFailure(uri);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * 在主线程上通知写入失败
+     */
+    private void reportFailure(final Uri uri) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<OnWriteFailedListener> listeners;
+                synchronized (NoteWriter.this) {
+                    listeners = new ArrayList<OnWriteFailedListener>(mListeners);
+                }
+                for (OnWriteFailedListener listener : listeners) {
+                    listener.onWriteFailed(uri);
+                }
+            }
+        });
+    }
+}
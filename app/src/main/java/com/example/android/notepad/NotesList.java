@@ -19,7 +19,8 @@ package com.example.android.notepad;
 import com.example.android.notepad.NotePad;
 
 import android.app.AlertDialog;
-import android.app.ListActivity;
+import android.app.Activity;
+import android.app.LoaderManager;
 import android.content.ClipboardManager;
 import android.content.ClipData;
 import android.content.ComponentName;
@@ -27,12 +28,17 @@ import android.content.ContentUris;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.SharedPreferences;
-import android.database.Cursor;
-import android.graphics.Color;
-import android.graphics.drawable.GradientDrawable;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
@@ -43,17 +49,11 @@ import android.view.SubMenu;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.SearchView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
 import android.widget.Toast;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
-import java.util.Locale;
 
 
 /**
@@ -61,12 +61,16 @@ import java.util.Locale;
  * provided in the incoming Intent if there is one, otherwise it defaults to displaying the
  * contents of the {@link NotePadProvider}.
  *
- * NOTE: Notice that the provider operations in this Activity are taking place on the UI thread.
- * This is not a good practice. It is only done here to make the code more readable. A real
- * application should use the {@link android.content.AsyncQueryHandler} or
- * {@link android.os.AsyncTask} object to perform operations asynchronously on a separate thread.
+ * The notes are shown in a {@link NotesRecyclerView}. They are queried asynchronously through a
+ * {@link NotesPageLoader}, which reads the notes one page at a time as the user scrolls and
+ * reloads the loaded pages when the provider reports a change. Each load is diffed against the
+ * list on the loader thread, so a change only updates the rows it affects.
+ *
+ * NOTE: Deleting a note from the context menu still takes place on the UI thread, to keep the
+ * code readable.
  */
-public class NotesList extends ListActivity {
+public class NotesList extends Activity
+        implements LoaderManager.LoaderCallbacks<NoteListSnapshot> {
 
     // For logging and debugging
     private static final String TAG = "NotesList";
@@ -76,23 +80,46 @@ public class NotesList extends ListActivity {
     private String mCurrentCategoryFilter = null;
     private String mCurrentTheme = "light";
 
-    /**
-     * The columns needed by the cursor adapter
-     */
-    private static final String[] PROJECTION = new String[] {
-            NotePad.Notes._ID, // 0
-            NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
-            NotePad.Notes.COLUMN_NAME_CATEGORY //3
-    };
+    // 搜索框停止输入多久后才执行查询，期间的按键合并为一次查询
+    private static final long SEARCH_DELAY_MS = 300;
+
+    // 列表数据的Loader ID
+    private static final int LOADER_NOTES = 0;
+
+    // 每页加载的笔记数，滚动到离末尾不足半页时加载下一页
+    private static final int PAGE_SIZE = 50;
+
+    private NotesRecyclerView mRecyclerView;
+    private LinearLayoutManager mLayoutManager;
 
-    /** The index of the title column */
-    private static final int COLUMN_INDEX_TITLE = 1;
-    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
-    private static final int COLUMN_INDEX_CATEGORY = 3;
+    // 整个生命周期只创建一次的列表适配器，查询结果只替换它显示的笔记
+    private NoteListAdapter mAdapter;
 
-    // 修改列表项布局，在时间戳后面显示分类
+    // 绑定列表项，分类标签背景和格式化的时间都会缓存，绑定时不再创建对象
+    private NoteRowBinder mRowBinder;
 
+    // 下一次加载完成后要显示的结果数量提示，包含一个%s，为null时不显示
+    private String mPendingCountMessage;
+
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mSearchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            loadData();
+        }
+    };
+
+    // 相对时间按分钟显示，在前台时每分钟刷新一次
+    private static final long TIME_REFRESH_MS = 60 * 1000;
+
+    private final Runnable mTimeRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAdapter.refreshTimes();
+            mHandler.postDelayed(this, TIME_REFRESH_MS);
+        }
+    };
 
     /**
      * onCreate is called when Android starts this Activity from scratch.
@@ -103,9 +130,11 @@ public class NotesList extends ListActivity {
 
         // 应用当前主题
         applyTheme();
+        setContentView(R.layout.noteslist);
+        mRecyclerView = (NotesRecyclerView) findViewById(R.id.notes_list);
         // 设置列表背景色
         if (mCurrentTheme.equals("colorful")) {
-            getListView().setBackgroundColor(getResources().getColor(R.color.background_colorful));
+            mRecyclerView.setBackgroundColor(getResources().getColor(R.color.background_colorful));
         }
 
         // The user does not need to hold down the key to use menu shortcuts.
@@ -130,12 +159,53 @@ public class NotesList extends ListActivity {
          * to be this Activity. The effect is that context menus are enabled for items in the
          * ListView,极速快3.
          */
+        registerForContextMenu(mRecyclerView);
+
+        mLayoutManager = new LinearLayoutManager(this);
+        mRecyclerView.setLayoutManager(mLayoutManager);
+
         // 设置列表分割线
-        getListView().setDivider(getResources().getDrawable(android.R.color.darker_gray));
-        getListView().setDividerHeight(1);
+        mRecyclerView.addItemDecoration(
+                new DividerDecoration(getResources().getColor(android.R.color.darker_gray), 1));
 
-        // 加载数据
-        loadData();
+        // 滚动到已加载部分的末尾附近时加载下一页
+        mRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int totalItemCount = mAdapter.getItemCount();
+                if (totalItemCount > 0 && mLayoutManager.findLastVisibleItemPosition()
+                        >= totalItemCount - 1 - PAGE_SIZE / 2) {
+                    Loader<NoteListSnapshot> loader = getLoaderManager().getLoader(LOADER_NOTES);
+                    if (loader instanceof NotesPageLoader) {
+                        ((NotesPageLoader) loader).loadNextPage();
+                    }
+                }
+            }
+        });
+
+        // 创建适配器并在后台加载数据
+        setupAdapter();
+        getLoaderManager().initLoader(LOADER_NOTES, null, this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // 没有变化的行不会重新绑定，回到前台时先刷新一次相对时间
+        mHandler.removeCallbacks(mTimeRefreshRunnable);
+        mTimeRefreshRunnable.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mTimeRefreshRunnable);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mHandler.removeCallbacks(mSearchRunnable);
     }
     /**
      * 应用主题
@@ -155,21 +225,43 @@ public class NotesList extends ListActivity {
     }
 
     /**
-     * 加载数据（新增方法）
+     * 列表查询的参数
      */
-    private void loadData() {
-        String selection = null;
-        String[] selectionArgs = null;
+    private static final class ListQuery {
+        Uri uri;
+        String selection;
+        String[] selectionArgs;
+        String sortOrder;
+        // 是否按(modified, _ID)分页加载
+        boolean paged;
+    }
+
+    /**
+     * 根据当前的搜索词和分类筛选构建列表查询
+     */
+    private ListQuery buildListQuery() {
+        ListQuery query = new ListQuery();
         // 构建查询条件
         List<String> selectionParts = new ArrayList<>();
         List<String> selectionArgsList = new ArrayList<>();
 
-        // 添加搜索条件
+        query.uri = getIntent().getData();
+        query.sortOrder = NotePad.Notes.DEFAULT_SORT_ORDER;
+
+        // 笔记目录按修改时间分页，排序里加上_ID使每页的起点唯一
+        if (NotePad.Notes.CONTENT_URI.equals(query.uri)) {
+            query.sortOrder = NotePad.Notes.PAGED_SORT_ORDER;
+            query.paged = true;
+        }
+
+        // 有搜索词时走全文检索URI，结果按匹配程度排序
         if (mCurrentSearchQuery != null && !mCurrentSearchQuery.isEmpty()) {
-            selectionParts.add("(" + NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " +
-                    NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?)");
-            selectionArgsList.add("%" + mCurrentSearchQuery + "%");
-            selectionArgsList.add("%" + mCurrentSearchQuery + "%");
+            query.uri = NotePad.Notes.CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_SEARCH, mCurrentSearchQuery)
+                    .build();
+            query.sortOrder = null;
+            // 搜索结果按匹配程度排序，无法按修改时间分页
+            query.paged = false;
         }
 
         // 添加分类筛选条件
@@ -180,142 +272,133 @@ public class NotesList extends ListActivity {
 
         // 组合查询条件
         if (!selectionParts.isEmpty()) {
-            selection = TextUtils.join(" AND ", selectionParts);
-            selectionArgs = selectionArgsList.toArray(new String[0]);
+            query.selection = TextUtils.join(" AND ", selectionParts);
+            query.selectionArgs = selectionArgsList.toArray(new String[0]);
         }
+        return query;
+    }
 
-        /* Performs a managed query. The Activity handles closing and requerying the cursor
-         * when needed.
-         *
-         * Please see the introductory note about performing provider operations on the UI thread.
-         */
-        Cursor cursor = managedQuery(
-                getIntent().getData(),            // Use the default content URI for the provider.
-                PROJECTION,                       // Return the note ID and title for each note.
-                selection,                        // 添加搜索条件
-                selectionArgs,                     // 添加搜索参数
-                NotePad.Notes.DEFAULT_SORT_ORDER  // Use the default sort order.
-        );
-
-        /*
-         * The following two arrays create a "map" between columns in the cursor and view IDs
-         * for items in the ListView. Each element in the dataColumns array represents
-         * a column name; each element in the viewID array represents the ID of a View.
-         * The SimpleCursorAdapter maps them in ascending order to determine where each column
-         * value will appear in the ListView.
-         */
-
-        // The names of the cursor columns to display in the view, initialized to the title column
-        // 修改数据列映射
-        String[] dataColumns = {
-                NotePad.Notes.COLUMN_NAME_TITLE,
-                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,  // 添加时间戳
-                NotePad.Notes.COLUMN_NAME_CATEGORY
-        };
-
-        int[] viewIDs = {
-                android.R.id.text1,
-                android.R.id.text2,  // 映射到第二个TextView
-                R.id.text_category
-        };
+    /**
+     * 加载数据（新增方法）。按当前的搜索词和分类筛选重新启动Loader，
+     * 还没完成的上一次查询会被取消。
+     */
+    private void loadData() {
+        TraceCompat.beginSection("NotesList.loadData");
+        try {
+            mHandler.removeCallbacks(mSearchRunnable);
+            getLoaderManager().restartLoader(LOADER_NOTES, null, this);
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
 
-        // 创建适配器
-        SimpleCursorAdapter adapter = new SimpleCursorAdapter(
+    @Override
+    public Loader<NoteListSnapshot> onCreateLoader(int id, Bundle args) {
+        ListQuery query = buildListQuery();
+        return new NotesPageLoader(
                 this,
-                R.layout.noteslist_item,  // 使用修改后的布局
-                cursor,
-                dataColumns,
-                viewIDs
+                query.uri,                        // The notes URI, or the search URI when searching.
+                query.selection,                  // 添加分类筛选条件
+                query.selectionArgs,              // 添加筛选参数
+                query.sortOrder,                  // Paged order, or best match first for searches.
+                query.paged ? PAGE_SIZE : 0,      // 搜索结果不分页
+                mAdapter.getNotes()               // 与当前显示的列表比较，只更新变化的行
         );
+    }
 
-        // 设置时间戳格式化
-        adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
-            @Override
-            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
-                if (columnIndex == COLUMN_INDEX_MODIFICATION_DATE) {
-                    // 处理时间戳
-                    TextView textView = (TextView) view;
-                    long timestamp = cursor.getLong(columnIndex);
-                    String formattedTime = formatTimestamp(timestamp);
-                    textView.setText(formattedTime);
-                    // 根据主题设置文字颜色
-                    if (mCurrentTheme.equals("dark")) {
-                        textView.setTextColor(getResources().getColor(R.color.text_secondary_dark));
-                    } else if (mCurrentTheme.equals("colorful")) {
-                        textView.setTextColor(0xFF5D4037); // 彩色主题的棕色文字
-                    } else {
-                        textView.setTextColor(getResources().getColor(R.color.text_secondary_light));
-                    }
-
-                    return true;
-                } else if (columnIndex == COLUMN_INDEX_CATEGORY) {
-                    // 处理分类显示
-                    TextView textView = (TextView) view;
-                    String category = cursor.getString(columnIndex);
-                    setCategoryView(textView, category);
-                    return true;
+    @Override
+    public void onLoadFinished(Loader<NoteListSnapshot> loader, NoteListSnapshot data) {
+        TraceCompat.beginSection("NotesList.onLoadFinished");
+        try {
+            // 差异已经在加载线程中算好，这里只通知有变化的行
+            mAdapter.setSnapshot(data);
+
+            // 显示搜索或筛选结果数量
+            if (mPendingCountMessage != null) {
+                // 还有没加载的页时只能显示已加载的数量
+                String count = Integer.toString(data != null ? data.getCount() : 0);
+                if (data != null && data.hasMore()) {
+                    count += "+";
                 }
-                return false;
+                Toast.makeText(this, String.format(mPendingCountMessage, count),
+                        Toast.LENGTH_SHORT).show();
+                mPendingCountMessage = null;
             }
-        });
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
 
-        setListAdapter(adapter);
+    @Override
+    public void onLoaderReset(Loader<NoteListSnapshot> loader) {
+        mAdapter.setSnapshot(null);
     }
+
     /**
-     * 设置分类标签的显示
+     * 创建列表适配器（只在onCreate中调用一次）
      */
-    private void setCategoryView(TextView textView, String category) {
-        String displayName = getCategoryDisplayName(category);
-        textView.setText(displayName);
-
-        // 根据主题设置分类标签样式
-        int color = getCategoryColor(category);
-        textView.setBackgroundColor(color);
-        textView.setTextColor(Color.WHITE);
-        textView.setPadding(8, 4, 8, 4);
-
-        // 设置圆角
-        GradientDrawable shape = new GradientDrawable();
-        shape.setShape(GradientDrawable.RECTANGLE);
-        shape.setCornerRadius(12);
-        shape.setColor(color);
-        textView.setBackground(shape);
-    }
-    private int getCategoryColor(String category) {
-        if (category == null) return 0xFF757575; // 默认灰色
-
-        switch (category) {
-            case "Work": return 0xFF2196F3;     // 蓝色
-            case "Personal": return 0xFF4CAF50; // 绿色
-            case "Ideas": return 0xFFFF9800;    // 橙色
-            default: return 0xFF757575;         // 灰色
+    private void setupAdapter() {
+        // 根据主题确定修改时间的文字颜色，主题切换时Activity会重新创建
+        int timeColor;
+        if (mCurrentTheme.equals("dark")) {
+            timeColor = getResources().getColor(R.color.text_secondary_dark);
+        } else if (mCurrentTheme.equals("colorful")) {
+            timeColor = 0xFF5D4037; // 彩色主题的棕色文字
+        } else {
+            timeColor = getResources().getColor(R.color.text_secondary_light);
         }
+        mRowBinder = new NoteRowBinder(new TimestampFormatter(this), timeColor);
+
+        // 创建适配器，笔记在加载完成后再设置。数据变化由Loader监听
+        mAdapter = new NoteListAdapter(this, mRowBinder, new NoteListAdapter.OnNoteClickListener() {
+            @Override
+            public void onNoteClick(long id) {
+                openNote(id);
+            }
+        });
+        mRecyclerView.setAdapter(mAdapter);
     }
 
-    private String getCategoryDisplayName(String category) {
-        if (category == null) return "通用";
-        switch (category) {
-            case "Work": return "工作";
-            case "Personal": return "个人";
-            case "Ideas": return "想法";
-            default: return "通用";
+    /**
+     * 在列表项之间画分割线
+     */
+    private static final class DividerDecoration extends RecyclerView.ItemDecoration {
+        private final Paint mPaint = new Paint();
+        private final int mHeight;
+
+        DividerDecoration(int color, int height) {
+            mPaint.setColor(color);
+            mHeight = height;
+        }
+
+        @Override
+        public void getItemOffsets(Rect outRect, View view, RecyclerView parent,
+                RecyclerView.State state) {
+            outRect.set(0, 0, 0, mHeight);
+        }
+
+        @Override
+        public void onDraw(Canvas c, RecyclerView parent, RecyclerView.State state) {
+            int left = parent.getPaddingLeft();
+            int right = parent.getWidth() - parent.getPaddingRight();
+            for (int i = 0; i < parent.getChildCount(); i++) {
+                View child = parent.getChildAt(i);
+                int top = child.getBottom() + (int) child.getTranslationY();
+                c.drawRect(left, top, right, top + mHeight, mPaint);
+            }
         }
     }
 
-    @Override
-    protected void onResume() {
-        super.onResume();
-        // 每次返回时重新加载数据
-        loadData();
+    /**
+     * 返回获得焦点的列表项的笔记ID，没有时返回RecyclerView.NO_ID
+     */
+    private long getSelectedItemId() {
+        View focused = mRecyclerView.getFocusedChild();
+        return focused != null ? mRecyclerView.getChildItemId(focused) : RecyclerView.NO_ID;
     }
 
-    private String formatTimestamp(long timestamp) {
-        try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy/MM/dd HH:mm", Locale.getDefault());
-            return sdf.format(new Date(timestamp));
-        } catch (Exception e) {
-            return "未知时间";
-        }
+    private String getCategoryDisplayName(String category) {
+        return NoteRowBinder.getCategoryDisplayName(category);
     }
 
     /**
@@ -381,18 +464,20 @@ public class NotesList extends ListActivity {
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextSubmit(String query) {
-                // 用户按下搜索键时执行
+                // 用户按下搜索键时立即执行
                 performSearch(query);
                 return true;
             }
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                // 文本变化时实时搜索
+                // 文本变化时延迟搜索，连续输入只查询一次
                 if (newText.isEmpty()) {
                     clearSearch();
                 } else {
-                    performSearch(newText);
+                    mCurrentSearchQuery = newText;
+                    mHandler.removeCallbacks(mSearchRunnable);
+                    mHandler.postDelayed(mSearchRunnable, SEARCH_DELAY_MS);
                 }
                 return true;
             }
@@ -406,14 +491,9 @@ public class NotesList extends ListActivity {
      */
     private void performSearch(String query) {
         mCurrentSearchQuery = query;
+        // 查询完成后显示搜索结果数量
+        mPendingCountMessage = "找到 %s 条相关笔记";
         loadData();
-
-        // 显示搜索结果数量
-        SimpleCursorAdapter adapter = (SimpleCursorAdapter) getListAdapter();
-        if (adapter != null && adapter.getCursor() != null) {
-            Toast.makeText(this, "找到 " + adapter.getCursor().getCount() + " 条相关笔记",
-                    Toast.LENGTH_SHORT).show();
-        }
     }
 
     /**
@@ -443,18 +523,18 @@ public class NotesList extends ListActivity {
             mPasteItem.setEnabled(false);
         }
 
-        // Gets the number of notes currently being displayed.
-        final boolean haveItems = getListAdapter().getCount() > 0;
+        // Gets the note that is currently selected, if any.
+        final long selectedId = getSelectedItemId();
+        final boolean haveItems = selectedId != RecyclerView.NO_ID;
 
-        // If there are any notes in the list (which implies that one of
-        // them is selected), then we need to generate the actions that
+        // If one of the notes in the list is selected, then we need to generate the actions that
         // can be performed on the current selection.  This will be a combination
         // of our own specific actions along with any extensions极速快3 that can be
         // found.
         if (haveItems) {
 
             // This is the selected item.
-            Uri uri = ContentUris.withAppendedId(getIntent().getData(), getSelectedItemId());
+            Uri uri = ContentUris.withAppendedId(getIntent().getData(), selectedId);
 
             // Creates an array of Intents with one element. This will be used to send an Intent
             // based on the selected menu item.
@@ -590,30 +670,14 @@ public class NotesList extends ListActivity {
     private void applyCategoryFilter(String category) {
         mCurrentCategoryFilter = category;
 
-        // 重新加载数据
-        loadData();
-
-        // 显示筛选结果
+        // 重新加载数据，加载完成后显示筛选结果
         String displayName = getCategoryDisplayName(category);
-        int count = getFilteredNoteCount();
-
-        String message = "找到 " + count + " 条" + displayName + "笔记";
-        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        mPendingCountMessage = "找到 %s 条" + displayName + "笔记";
+        loadData();
 
         // 更新标题显示当前筛选状态
         updateTitle();
     }
-    /**
-     * 获取筛选后的笔记数量
-     */
-    private int getFilteredNoteCount() {
-        SimpleCursorAdapter adapter = (SimpleCursorAdapter) getListAdapter();
-        if (adapter != null && adapter.getCursor() != null) {
-            return adapter.getCursor().getCount();
-        }
-        return 0;
-    }
-
     /**
      * 更新标题显示筛选状态
      */
@@ -668,26 +732,21 @@ public class NotesList extends ListActivity {
         }
 
         /*
-         * Gets the data associated with the item at the selected position. getItem() returns极速快3
-         * whatever the backing adapter of the ListView has associated with the item. In NotesList,
-         * the adapter associated all of the data for a note with its list item极速快3. As a result,
-         * getItem() returns that data as a Cursor.
+         * Gets the note shown at the selected position. NotesRecyclerView puts the adapter
+         * position and the note ID of the long-pressed row into the menu info.
          */
-        Cursor cursor = (Cursor) getListAdapter().getItem(info.position);
-
-        // If the cursor is empty, then for some reason the adapter can't get the data from the
-        // provider, so returns null to the caller.
-        if (cursor == null) {
+        if (info == null || info.position >= mAdapter.getItemCount()) {
             // For some reason the requested item isn't available, do nothing
             return;
         }
+        NoteListSnapshot.Note note = mAdapter.getNote(info.position);
 
         // Inflate menu from XML resource
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.list_context_menu, menu);
 
         // Sets the menu header to be the title of the selected note.
-        menu.setHeaderTitle(cursor.getString(COLUMN_INDEX_TITLE));
+        menu.setHeaderTitle(note.title);
 
         // Append to the
         // menu items for any other activities that can do stuff with it
@@ -828,13 +887,9 @@ public class NotesList extends ListActivity {
      * This method handles incoming actions of either PICK (get data from the provider) or
      * GET_CONTENT (get or create data). If the incoming action is EDIT, this method sends a
      * new Intent to start NoteEditor.
-     * @param l The ListView that contains the clicked item
-     * @param v The View of the individual item
-     * @param position The position of v in the displayed list
      * @param id The row ID of the clicked item
      */
-    @Override
-    protected void onListItemClick(ListView l, View v, int position, long id) {
+    private void openNote(long id) {
 
         // Constructs a new URI from the incoming URI and the row ID
         Uri uri = ContentUris.withAppendedId(getIntent().getData(), id);
@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.annotation.TargetApi;
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.support.v4.os.TraceCompat;
+import android.support.v7.util.DiffUtil;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the notes list one page at a time, using the keyset parameters of
+ * {@link NotePad.Notes#CONTENT_URI}. Opening the list only reads the first page, and
+ * {@link #loadNextPage()} appends the page that follows the last loaded note.
+ *
+ * Each page is copied into a {@link NoteListSnapshot} and its cursor closed right away, so no
+ * cursor or CursorWindow is held while the list is shown. The loader also compares the new
+ * snapshot with the previous one on its background thread, and hands the resulting
+ * {@link DiffUtil.DiffResult} to the list together with the notes.
+ *
+ * When the provider reports a change to a single note, only that note is queried again and moved
+ * to its place in the loaded list; changes to columns the list does not show are ignored. Other
+ * changes query every page that was loaded so far again, so the list keeps its length and
+ * scroll position. A page size of 0 loads everything in one query, which is used for ranked
+ * search results that cannot be paged by key, and which are always queried again.
+ *
+ * On API 16 and above, a load that is no longer needed cancels the query it is running, the
+ * same way {@link android.content.CursorLoader} does.
+ */
+public class NotesPageLoader extends AsyncTaskLoader<NoteListSnapshot> {
+
+    /**
+     * The columns copied into the snapshot
+     */
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 2
+            NotePad.Notes.COLUMN_NAME_CATEGORY, // 3
+            NotePad.Notes.COLUMN_NAME_SNIPPET // 4
+    };
+    private static final int COLUMN_INDEX_ID = 0;
+    private static final int COLUMN_INDEX_TITLE = 1;
+    private static final int COLUMN_INDEX_MODIFICATION_DATE = 2;
+    private static final int COLUMN_INDEX_CATEGORY = 3;
+    private static final int COLUMN_INDEX_SNIPPET = 4;
+
+    // 换了查询条件后，新旧列表有一个超过这个长度就不计算差异，直接刷新整个列表。
+    // 两个不相关的列表差异很大，计算差异的时间会随长度平方增长
+    private static final int MAX_DIFF_SIZE = 2000;
+
+    // 列表显示的列，只有这些列变化时才需要更新列表
+    private static final String[] LIST_COLUMNS = new String[] {
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_CATEGORY,
+            NotePad.Notes.COLUMN_NAME_SNIPPET
+    };
+
+    private final ChangeObserver mObserver;
+    private boolean mObserverRegistered;
+
+    private final Uri mUri;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final String mSortOrder;
+    private final int mPageSize;
+
+    // 第一次加载时与之比较的列表，即重新创建加载器之前列表显示的内容
+    private final List<NoteListSnapshot.Note> mInitialBase;
+
+    // 已经交付的结果
+    private volatile NoteListSnapshot mSnapshot;
+
+    // 为true时，下一次加载只在已交付的结果后面追加一页
+    private volatile boolean mAppend;
+
+    // 为true时，下一次加载重新查询所有已经加载的页
+    private volatile boolean mReload;
+
+    // 还没有合并到列表中的单条笔记的变化，由自身保护
+    private final List<NoteChange> mChanges = new ArrayList<NoteChange>();
+
+    // 正在进行的加载处理了mChanges中的前几个变化，交付结果后从mChanges中删除
+    private volatile int mChangesApplied;
+
+    // 正在进行的加载的取消信号，只在API 16及以上使用，由this保护
+    private CancellationSignal mCancellationSignal;
+
+    /**
+     * 单条笔记的变化
+     */
+    private static final class NoteChange {
+        final long id;
+        final boolean deleted;
+
+        NoteChange(long id, boolean deleted) {
+            this.id = id;
+            this.deleted = deleted;
+        }
+    }
+
+    // 不影响列表显示的变化
+    private static final NoteChange IGNORED_CHANGE = new NoteChange(-1, false);
+
+    /**
+     * 接收笔记的变化通知。API 16以上的通知带有URI，可以只更新变化的笔记。
+     */
+    private final class ChangeObserver extends ContentObserver {
+        ChangeObserver() {
+            super(new Handler());
+        }
+
+        @Override
+        public boolean deliverSelfNotifications() {
+            return true;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onNotesChanged(uri);
+        }
+    }
+
+    /**
+     * @param base 列表当前显示的笔记，第一次加载的结果与它比较；为null时不计算差异
+     * @param pageSize 每页的笔记数，为0时不分页
+     */
+    public NotesPageLoader(Context context, Uri uri, String selection, String[] selectionArgs,
+            String sortOrder, int pageSize, List<NoteListSnapshot.Note> base) {
+        super(context);
+        mObserver = new ChangeObserver();
+        mUri = uri;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mSortOrder = sortOrder;
+        mPageSize = pageSize;
+        mInitialBase = base;
+    }
+
+    /**
+     * 在已经加载的笔记后面追加一页。没有更多笔记或正在加载时什么也不做。
+     */
+    public void loadNextPage() {
+        if (mSnapshot == null || !mSnapshot.hasMore() || mAppend || mReload) {
+            return;
+        }
+        mAppend = true;
+        forceLoad();
+    }
+
+    @Override
+    public NoteListSnapshot loadInBackground() {
+        TraceCompat.beginSection("NotesPageLoader.loadInBackground");
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                beginCancellableLoad();
+            }
+            NoteListSnapshot previous = mSnapshot;
+            List<NoteListSnapshot.Note> base =
+                    previous != null ? previous.getNotes() : mInitialBase;
+            ArrayList<NoteListSnapshot.Note> notes = new ArrayList<NoteListSnapshot.Note>();
+
+            List<NoteChange> changes;
+            synchronized (mChanges) {
+                changes = new ArrayList<NoteChange>(mChanges);
+            }
+            mChangesApplied = changes.size();
+
+            int pageCount = 0;
+            boolean hasMore = true;
+            if (previous != null && !mReload) {
+                // 沿用已经加载的笔记，只更新变化的笔记
+                notes.addAll(previous.getNotes());
+                pageCount = previous.getPageCount();
+                hasMore = previous.hasMore();
+                for (NoteChange change : changes) {
+                    applyChange(notes, change, hasMore);
+                }
+
+                if (mAppend && hasMore) {
+                    // 追加下一页
+                    int count = readPage(notes);
+                    pageCount++;
+                    hasMore = count == mPageSize;
+                }
+            } else {
+                // 重新加载时从第一页开始，加载和之前一样多的页，之前的变化都包含在内
+                int pagesToLoad = previous != null ? Math.max(1, previous.getPageCount()) : 1;
+                for (int i = 0; i < pagesToLoad && hasMore; i++) {
+                    int count = readPage(notes);
+                    pageCount++;
+                    hasMore = mPageSize > 0 && count == mPageSize;
+                }
+            }
+            List<NoteListSnapshot.Note> result = Collections.unmodifiableList(notes);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                // 计算差异之前再检查一次，不为已经放弃的结果计算
+                throwIfLoadCanceled();
+            }
+
+            // 同一个查询重新加载或追加时，两次结果通常只差几行
+            DiffUtil.DiffResult diff = null;
+            if (base != null && (previous != null
+                    || (base.size() <= MAX_DIFF_SIZE && result.size() <= MAX_DIFF_SIZE))) {
+                diff = DiffUtil.calculateDiff(new NoteListSnapshot.DiffCallback(base, result));
+            }
+            return new NoteListSnapshot(result, base, diff, hasMore, pageCount);
+        } finally {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                endCancellableLoad();
+            }
+            TraceCompat.endSection();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Override
+    public void cancelLoadInBackground() {
+        super.cancelLoadInBackground();
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.cancel();
+            }
+        }
+    }
+
+    @Override
+    public void onCanceled(NoteListSnapshot snapshot) {
+        // 没有加载的下一页等列表再次滚动到底部时重新请求；
+        // 重新加载的请求由AsyncTaskLoader作为未处理的内容变化保留
+        mAppend = false;
+    }
+
+    /**
+     * 为这次加载创建取消信号。加载在开始前已经被取消时抛出OperationCanceledException，
+     * AsyncTaskLoader把它当作取消处理
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void beginCancellableLoad() {
+        synchronized (this) {
+            if (isLoadInBackgroundCanceled()) {
+                throw new OperationCanceledException();
+            }
+            mCancellationSignal = new CancellationSignal();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void throwIfLoadCanceled() {
+        synchronized (this) {
+            if (mCancellationSignal != null) {
+                mCancellationSignal.throwIfCanceled();
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void endCancellableLoad() {
+        synchronized (this) {
+            mCancellationSignal = null;
+        }
+    }
+
+    /**
+     * 查询PROJECTION中的列。API 16及以上把这次加载的取消信号传给提供者，
+     * 加载被取消时查询抛出OperationCanceledException
+     */
+    private Cursor query(Uri uri, String selection, String[] selectionArgs, String sortOrder) {
+        ContentResolver resolver = getContext().getContentResolver();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return resolver.query(uri, PROJECTION, selection, selectionArgs, sortOrder);
+        }
+        return queryWithSignal(resolver, uri, selection, selectionArgs, sortOrder);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Cursor queryWithSignal(ContentResolver resolver, Uri uri, String selection,
+            String[] selectionArgs, String sortOrder) {
+        CancellationSignal cancellationSignal;
+        synchronized (this) {
+            cancellationSignal = mCancellationSignal;
+        }
+        return resolver.query(uri, PROJECTION, selection, selectionArgs, sortOrder,
+                cancellationSignal);
+    }
+
+    /**
+     * 查询notes中最后一条笔记之后的一页（notes为空时查询第一页），追加到notes中。
+     * 不分页时查询全部笔记。
+     *
+     * @return 这一页的笔记数
+     */
+    private int readPage(List<NoteListSnapshot.Note> notes) {
+        TraceCompat.beginSection("NotesPageLoader.readPage");
+        try {
+            Uri uri = mUri;
+            if (mPageSize > 0) {
+                Uri.Builder builder = mUri.buildUpon()
+                        .appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_LIMIT,
+                                Integer.toString(mPageSize));
+                if (!notes.isEmpty()) {
+                    NoteListSnapshot.Note last = notes.get(notes.size() - 1);
+                    builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_MODIFIED,
+                            Long.toString(last.modified));
+                    builder.appendQueryParameter(NotePad.Notes.QUERY_PARAMETER_BEFORE_ID,
+                            Long.toString(last.id));
+                }
+                uri = builder.build();
+            }
+
+            Cursor cursor = query(uri, mSelection, mSelectionArgs, mSortOrder);
+            if (cursor == null) {
+                // 查询失败时当作空页处理
+                return 0;
+            }
+            try {
+                int count = 0;
+                while (cursor.moveToNext()) {
+                    notes.add(readNote(cursor));
+                    count++;
+                }
+                return count;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            TraceCompat.endSection();
+        }
+    }
+
+    /**
+     * 把一条笔记的变化合并到列表中：先移除旧的一行，再查询这条笔记，按排序插入到对应的位置。
+     * 排在已加载部分之后的笔记等加载到那一页时再显示。
+     */
+    private void applyChange(List<NoteListSnapshot.Note> notes, NoteChange change,
+            boolean hasMore) {
+        for (int i = 0; i < notes.size(); i++) {
+            if (notes.get(i).id == change.id) {
+                notes.remove(i);
+                break;
+            }
+        }
+        if (change.deleted) {
+            return;
+        }
+
+        NoteListSnapshot.Note note = queryNote(change.id);
+        if (note == null) {
+            // 不符合当前的筛选条件
+            return;
+        }
+        int position = 0;
+        while (position < notes.size() && comesBefore(notes.get(position), note)) {
+            position++;
+        }
+        if (position < notes.size() || !hasMore) {
+            notes.add(position, note);
+        }
+    }
+
+    /**
+     * 按PAGED_SORT_ORDER（修改时间和_ID都降序）a是否排在b之前
+     */
+    private static boolean comesBefore(NoteListSnapshot.Note a, NoteListSnapshot.Note b) {
+        return a.modified > b.modified || (a.modified == b.modified && a.id > b.id);
+    }
+
+    /**
+     * 按当前的筛选条件查询一条笔记，不符合条件或已被删除时返回null
+     */
+    private NoteListSnapshot.Note queryNote(long id) {
+        String selection = NotePad.Notes._ID + " = ?";
+        String[] selectionArgs = new String[] { Long.toString(id) };
+        if (mSelection != null) {
+            selection = selection + " AND (" + mSelection + ")";
+            if (mSelectionArgs != null) {
+                String[] args = new String[mSelectionArgs.length + 1];
+                args[0] = selectionArgs[0];
+                System.arraycopy(mSelectionArgs, 0, args, 1, mSelectionArgs.length);
+                selectionArgs = args;
+            }
+        }
+
+        Cursor cursor = query(mUri, selection, selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return readNote(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static NoteListSnapshot.Note readNote(Cursor cursor) {
+        return new NoteListSnapshot.Note(
+                cursor.getLong(COLUMN_INDEX_ID),
+                cursor.getString(COLUMN_INDEX_TITLE),
+                cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE),
+                cursor.getString(COLUMN_INDEX_CATEGORY),
+                cursor.getString(COLUMN_INDEX_SNIPPET));
+    }
+
+    /**
+     * 处理一次变化通知。通知URI是单条笔记的变化时记下这条笔记，只更新它；
+     * 其他通知重新加载所有已经加载的页。
+     */
+    private void onNotesChanged(Uri uri) {
+        NoteChange change = parseChange(uri);
+        if (change == null) {
+            mReload = true;
+            mAppend = false;
+            onContentChanged();
+            return;
+        }
+        if (change == IGNORED_CHANGE) {
+            return;
+        }
+        synchronized (mChanges) {
+            mChanges.add(change);
+        }
+        onContentChanged();
+    }
+
+    /**
+     * 解析变化通知URI。不是单条笔记的变化、或者列表不能按单条笔记更新时返回null；
+     * 只改变了列表不显示的列时返回IGNORED_CHANGE。
+     */
+    private NoteChange parseChange(Uri uri) {
+        if (uri == null || mPageSize == 0) {
+            // 搜索结果按匹配程度排序，笔记内容的变化也会影响结果，总是重新查询
+            return null;
+        }
+        String change = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGE);
+        List<String> segments = uri.getPathSegments();
+        if (change == null || segments.size() != 2) {
+            return null;
+        }
+
+        long id;
+        try {
+            id = Long.parseLong(segments.get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        if (NotePad.Notes.CHANGE_DELETE.equals(change)) {
+            return new NoteChange(id, true);
+        } else if (NotePad.Notes.CHANGE_INSERT.equals(change)) {
+            return new NoteChange(id, false);
+        } else if (NotePad.Notes.CHANGE_UPDATE.equals(change)) {
+            String columns = uri.getQueryParameter(NotePad.Notes.QUERY_PARAMETER_CHANGED_COLUMNS);
+            if (columns != null && !containsListColumn(columns.split(","))) {
+                return IGNORED_CHANGE;
+            }
+            return new NoteChange(id, false);
+        }
+        return null;
+    }
+
+    private static boolean containsListColumn(String[] columns) {
+        for (String column : columns) {
+            for (String listColumn : LIST_COLUMNS) {
+                if (listColumn.equals(column)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void deliverResult(NoteListSnapshot snapshot) {
+        if (isReset()) {
+            // 加载器已经重置，丢弃结果
+            return;
+        }
+        if (snapshot != mSnapshot) {
+            mSnapshot = snapshot;
+            mAppend = false;
+            mReload = false;
+            // 这次加载已经包含的变化不再处理
+            synchronized (mChanges) {
+                mChanges.subList(0, Math.min(mChangesApplied, mChanges.size())).clear();
+            }
+            mChangesApplied = 0;
+        }
+        if (isStarted()) {
+            super.deliverResult(snapshot);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            // 监听所有笔记的变化，包括搜索结果中的笔记
+            getContext().getContentResolver().registerContentObserver(
+                    NotePad.Notes.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mSnapshot != null) {
+            deliverResult(mSnapshot);
+        }
+        if (takeContentChanged() || mSnapshot == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mSnapshot = null;
+        mAppend = false;
+        mReload = false;
+        synchronized (mChanges) {
+            mChanges.clear();
+        }
+    }
+}
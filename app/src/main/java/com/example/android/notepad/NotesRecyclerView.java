@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.support.v7.widget.RecyclerView;
+import android.util.AttributeSet;
+import android.view.ContextMenu.ContextMenuInfo;
+import android.view.View;
+import android.widget.AdapterView;
+
+/**
+ * A {@link RecyclerView} that reports the long-pressed row to context menus the way a ListView
+ * does, as an {@link AdapterView.AdapterContextMenuInfo} holding the row's adapter position and
+ * stable ID. Register it with {@link android.app.Activity#registerForContextMenu(View)}.
+ */
+public class NotesRecyclerView extends RecyclerView {
+
+    private AdapterView.AdapterContextMenuInfo mContextMenuInfo;
+
+    public NotesRecyclerView(Context context) {
+        super(context);
+    }
+
+    public NotesRecyclerView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+    }
+
+    public NotesRecyclerView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+    }
+
+    @Override
+    public boolean showContextMenuForChild(View originalView) {
+        int position = getChildAdapterPosition(originalView);
+        if (position == NO_POSITION) {
+            return false;
+        }
+        mContextMenuInfo = new AdapterView.AdapterContextMenuInfo(originalView, position,
+                getChildItemId(originalView));
+        return super.showContextMenuForChild(originalView);
+    }
+
+    @Override
+    protected ContextMenuInfo getContextMenuInfo() {
+        return mContextMenuInfo;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.os.Bundle;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of {@link NotePadProvider} operations, kept for each operation
+ * and each kind of URI. Recording an operation takes two clock reads and a few atomic adds, with
+ * no locks and no allocation, so the statistics stay on in release builds.
+ *
+ * The histograms have power-of-two buckets: bucket 0 counts operations that took less than
+ * {@link #FIRST_BUCKET_MICROS} microseconds, and each following bucket is twice as wide as the
+ * one before. The last bucket also counts everything slower.
+ */
+final class ProviderStats {
+
+    /**
+     * Operations, the first index of the statistics
+     */
+    static final int OP_QUERY = 0;
+    static final int OP_INSERT = 1;
+    static final int OP_UPDATE = 2;
+    static final int OP_DELETE = 3;
+    // 通过管道读取笔记内容或导出
+    static final int OP_STREAM = 4;
+    private static final String[] OP_NAMES = { "query", "insert", "update", "delete", "stream" };
+
+    static final int FIRST_BUCKET_MICROS = 32;
+    static final int BUCKET_COUNT = 18;
+
+    // 每个操作和URI的一组计数在数组中的位置
+    private static final int SLOT_COUNT = 0;
+    private static final int SLOT_TOTAL_NANOS = 1;
+    private static final int SLOT_MAX_NANOS = 2;
+    private static final int SLOT_ROWS = 3;
+    private static final int SLOT_BYTES = 4;
+    private static final int SLOT_BUCKETS = 5;
+    private static final int SLOTS = SLOT_BUCKETS + BUCKET_COUNT;
+
+    // URI的名称，下标是UriMatcher的匹配结果，0用于不匹配的URI
+    private final String[] mUriNames;
+
+    private final AtomicLongArray mCounters;
+
+    private final AtomicLong mNotifications = new AtomicLong();
+    private final AtomicLong mSuppressedNotifications = new AtomicLong();
+
+    /**
+     * @param uriNames 每种URI的名称，下标是UriMatcher的匹配结果
+     */
+    ProviderStats(String[] uriNames) {
+        mUriNames = uriNames;
+        mCounters = new AtomicLongArray(OP_NAMES.length * uriNames.length * SLOTS);
+    }
+
+    /**
+     * 记录一次操作
+     *
+     * @param match UriMatcher的匹配结果，不匹配时为UriMatcher.NO_MATCH
+     * @param startNanos 操作开始时System.nanoTime()的值
+     * @param rows 返回或修改的行数
+     * @param bytes 写入管道的字节数
+     */
+    void record(int op, int match, long startNanos, long rows, long bytes) {
+        long nanos = System.nanoTime() - startNanos;
+        int base = (op * mUriNames.length + Math.max(0, match)) * SLOTS;
+        mCounters.incrementAndGet(base + SLOT_COUNT);
+        mCounters.addAndGet(base + SLOT_TOTAL_NANOS, nanos);
+        mCounters.addAndGet(base + SLOT_ROWS, rows);
+        if (bytes > 0) {
+            mCounters.addAndGet(base + SLOT_BYTES, bytes);
+        }
+        mCounters.incrementAndGet(base + SLOT_BUCKETS + getBucket(nanos));
+
+        long max;
+        do {
+            max = mCounters.get(base + SLOT_MAX_NANOS);
+        } while (nanos > max && !mCounters.compareAndSet(base + SLOT_MAX_NANOS, max, nanos));
+    }
+
+    /**
+     * 记录一次变化通知
+     *
+     * @param suppressed 在applyBatch或导入期间，没有单独发出
+     */
+    void recordNotification(boolean suppressed) {
+        if (suppressed) {
+            mSuppressedNotifications.incrementAndGet();
+        } else {
+            mNotifications.incrementAndGet();
+        }
+    }
+
+    /**
+     * 返回METHOD_GET_STATS的结果。只包含执行过的操作，各个计数分别读取，不是同一时刻的快照
+     */
+    Bundle toBundle() {
+        Bundle result = new Bundle();
+        long[] bounds = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bounds[i] = getBucketBoundMicros(i);
+        }
+        result.putLongArray(NotePad.Notes.STATS_HISTOGRAM_BOUNDS, bounds);
+        result.putLong(NotePad.Notes.STATS_NOTIFICATIONS, mNotifications.get());
+        result.putLong(NotePad.Notes.STATS_SUPPRESSED_NOTIFICATIONS,
+                mSuppressedNotifications.get());
+
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mUriNames.length; match++) {
+                int base = (op * mUriNames.length + match) * SLOTS;
+                long count = mCounters.get(base + SLOT_COUNT);
+                if (count == 0) {
+                    continue;
+                }
+                Bundle stats = new Bundle();
+                stats.putLong(NotePad.Notes.STATS_COUNT, count);
+                stats.putLong(NotePad.Notes.STATS_TOTAL_MICROS,
+                        mCounters.get(base + SLOT_TOTAL_NANOS) / 1000);
+                stats.putLong(NotePad.Notes.STATS_MAX_MICROS,
+                        mCounters.get(base + SLOT_MAX_NANOS) / 1000);
+                stats.putLong(NotePad.Notes.STATS_ROWS, mCounters.get(base + SLOT_ROWS));
+                stats.putLong(NotePad.Notes.STATS_BYTES, mCounters.get(base + SLOT_BYTES));
+                stats.putLongArray(NotePad.Notes.STATS_HISTOGRAM, getHistogram(base));
+                result.putBundle(OP_NAMES[op] + ":" + mUriNames[match], stats);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 输出到dumpsys，每个执行过的操作一行，百分位数是所在桶的上界
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Notifications: " + mNotifications.get() + " sent, "
+                + mSuppressedNotifications.get() + " suppressed in batches");
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mUriNames.length; match++) {
+                int base = (op * mUriNames.length + match) * SLOTS;
+                long count = mCounters.get(base + SLOT_COUNT);
+                if (count == 0) {
+                    continue;
+                }
+                long[] histogram = getHistogram(base);
+                writer.println(OP_NAMES[op] + " " + mUriNames[match] + ": count=" + count
+                        + " avg=" + (mCounters.get(base + SLOT_TOTAL_NANOS) / count / 1000)
+                        + "us p50<=" + getPercentileMicros(histogram, 50)
+                        + "us p90<=" + getPercentileMicros(histogram, 90)
+                        + "us p99<=" + getPercentileMicros(histogram, 99)
+                        + "us max=" + (mCounters.get(base + SLOT_MAX_NANOS) / 1000)
+                        + "us rows=" + mCounters.get(base + SLOT_ROWS)
+                        + " bytes=" + mCounters.get(base + SLOT_BYTES));
+            }
+        }
+    }
+
+    private long[] getHistogram(int base) {
+        long[] histogram = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            histogram[i] = mCounters.get(base + SLOT_BUCKETS + i);
+        }
+        return histogram;
+    }
+
+    /**
+     * 返回至少percent%的操作所在的桶的上界。最后一个桶没有上界，返回它的下界
+     */
+    private static long getPercentileMicros(long[] histogram, int percent) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long needed = (total * percent + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            seen += histogram[i];
+            if (seen >= needed) {
+                return getBucketBoundMicros(i);
+            }
+        }
+        return getBucketBoundMicros(BUCKET_COUNT - 2);
+    }
+
+    /**
+     * 桶的上界（不含），单位微秒
+     */
+    static long getBucketBoundMicros(int bucket) {
+        return (long) FIRST_BUCKET_MICROS << bucket;
+    }
+
+    static int getBucket(long nanos) {
+        long scaled = nanos / 1000 / FIRST_BUCKET_MICROS;
+        return Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(scaled));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.os.Bundle;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * The most recent slow queries of {@link NotePadProvider}, kept in a ring buffer of
+ * {@link #CAPACITY} entries. A query is slow when running it and filling its first window took
+ * at least the threshold.
+ *
+ * Each entry holds the SQL that was run, the shape of each argument instead of its value, so
+ * note text never ends up in the log, the duration, the row count, and the plan that SQLite
+ * reports for the query. Nothing is done for queries under the threshold besides comparing
+ * their duration.
+ */
+final class SlowQueryLog {
+
+    // 保留的慢查询条数
+    static final int CAPACITY = 32;
+
+    // 默认阈值，大约是主线程上丢掉三帧的时间
+    static final long DEFAULT_THRESHOLD_MILLIS = 50;
+
+    private static final String EXPLAIN = "EXPLAIN QUERY PLAN ";
+
+    // EXPLAIN QUERY PLAN结果中描述每一步的列
+    private static final String PLAN_COLUMN_DETAIL = "detail";
+
+    /**
+     * 一条慢查询
+     */
+    private static final class Entry {
+        long timeMillis;
+        String sql;
+        String[] argShapes;
+        long durationNanos;
+        int rows;
+        String plan;
+    }
+
+    private volatile long mThresholdNanos = DEFAULT_THRESHOLD_MILLIS * 1000000L;
+
+    // 环形缓冲区，mNext是下一条写入的位置。由this保护
+    private final Entry[] mEntries = new Entry[CAPACITY];
+    private int mNext;
+    private long mTotal;
+
+    /**
+     * 设置阈值，0表示记录所有查询
+     */
+    void setThresholdMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative threshold " + millis);
+        }
+        mThresholdNanos = millis * 1000000L;
+    }
+
+    long getThresholdMillis() {
+        return mThresholdNanos / 1000000L;
+    }
+
+    /**
+     * 查询是否慢到需要记录
+     */
+    boolean isSlow(long durationNanos) {
+        return durationNanos >= mThresholdNanos;
+    }
+
+    /**
+     * 记录一条慢查询，在执行查询的线程上读取它的查询计划
+     */
+    void record(SQLiteDatabase db, String sql, String[] args, long durationNanos, int rows) {
+        Entry entry = new Entry();
+        entry.timeMillis = System.currentTimeMillis();
+        entry.sql = sql;
+        entry.argShapes = getArgShapes(args);
+        entry.durationNanos = durationNanos;
+        entry.rows = rows;
+        entry.plan = explain(db, sql, args);
+
+        synchronized (this) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % CAPACITY;
+            mTotal++;
+        }
+    }
+
+    /**
+     * 返回METHOD_GET_SLOW_QUERIES的结果，最早的一条在前
+     */
+    Bundle toBundle() {
+        ArrayList<Bundle> queries = new ArrayList<Bundle>();
+        long total;
+        synchronized (this) {
+            total = mTotal;
+            for (Entry entry : getEntries()) {
+                Bundle query = new Bundle();
+                query.putLong(NotePad.Notes.SLOW_QUERY_TIME, entry.timeMillis);
+                query.putString(NotePad.Notes.SLOW_QUERY_SQL, entry.sql);
+                query.putStringArray(NotePad.Notes.SLOW_QUERY_ARGS, entry.argShapes);
+                query.putLong(NotePad.Notes.SLOW_QUERY_MICROS, entry.durationNanos / 1000);
+                query.putInt(NotePad.Notes.SLOW_QUERY_ROWS, entry.rows);
+                query.putString(NotePad.Notes.SLOW_QUERY_PLAN, entry.plan);
+                queries.add(query);
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putParcelableArrayList(NotePad.Notes.SLOW_QUERIES_RESULT, queries);
+        result.putLong(NotePad.Notes.SLOW_QUERIES_TOTAL, total);
+        result.putLong(NotePad.Notes.SLOW_QUERY_THRESHOLD_MILLIS, getThresholdMillis());
+        return result;
+    }
+
+    /**
+     * 输出到dumpsys，最早的一条在前
+     */
+    synchronized void dump(PrintWriter writer) {
+        writer.println("Slow queries: " + mTotal + " over " + getThresholdMillis()
+                + " ms, last " + CAPACITY + " kept");
+        for (Entry entry : getEntries()) {
+            writer.println("  " + new Date(entry.timeMillis) + " " + (entry.durationNanos / 1000)
+                    + " us, " + entry.rows + " rows");
+            writer.println("    " + entry.sql);
+            if (entry.argShapes != null) {
+                writer.println("    args: " + TextUtils.join(", ", entry.argShapes));
+            }
+            for (String step : entry.plan.split("\n")) {
+                writer.println("    plan: " + step);
+            }
+        }
+    }
+
+    // 按记录顺序返回保留的条目，调用时持有this
+    private ArrayList<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<Entry>(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            Entry entry = mEntries[(mNext + i) % CAPACITY];
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * 返回每个参数的形态而不是值：null、整数，或者文本和它的长度
+     */
+    static String[] getArgShapes(String[] args) {
+        if (args == null) {
+            return null;
+        }
+        String[] shapes = new String[args.length];
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg == null) {
+                shapes[i] = "null";
+            } else if (isInteger(arg)) {
+                shapes[i] = "integer";
+            } else {
+                shapes[i] = "text(" + arg.length() + ")";
+            }
+        }
+        return shapes;
+    }
+
+    private static boolean isInteger(String arg) {
+        try {
+            Long.parseLong(arg);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 读取SQLite的查询计划，每一步一行
+     */
+    private static String explain(SQLiteDatabase db, String sql, String[] args) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery(EXPLAIN + sql, args);
+            int detail = c.getColumnIndexOrThrow(PLAN_COLUMN_DETAIL);
+            StringBuilder plan = new StringBuilder();
+            while (c.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(c.getString(detail));
+            }
+            return plan.toString();
+        } catch (SQLiteException e) {
+            return "Unable to explain: " + e.getMessage();
+        } catch (IllegalArgumentException e) {
+            return "Unable to explain: " + e.getMessage();
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+}
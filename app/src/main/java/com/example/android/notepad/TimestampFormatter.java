@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.content.res.Resources;
+
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Formats note modification dates for the notes list. Recent dates are shown relative to the
+ * current time ("5 分钟前"), older ones as an absolute date and time.
+ *
+ * Binding a list row is on the scrolling path, so the formatter avoids allocating once its caches
+ * are warm: there is one {@link SimpleDateFormat} per locale, absolute dates are remembered per
+ * minute in a small direct-mapped cache, and the relative strings are built once per value. All
+ * methods are synchronized, so one instance can be shared between threads.
+ */
+public class TimestampFormatter {
+
+    private static final long MINUTE_MILLIS = 60 * 1000;
+    private static final long HOUR_MILLIS = 60 * MINUTE_MILLIS;
+    private static final long DAY_MILLIS = 24 * HOUR_MILLIS;
+
+    // 绝对时间的格式，精确到分钟
+    private static final String ABSOLUTE_PATTERN = "yyyy/MM/dd HH:mm";
+
+    // 绝对时间缓存的大小为2的CACHE_BITS次方
+    private static final int CACHE_BITS = 8;
+    private static final int CACHE_SIZE = 1 << CACHE_BITS;
+
+    private final Resources mResources;
+
+    // 每个语言区域一个格式化器，SimpleDateFormat不是线程安全的，只在锁内使用
+    private final Map<Locale, SimpleDateFormat> mFormats = new HashMap<Locale, SimpleDateFormat>();
+    private final Date mDate = new Date();
+    private Locale mLocale;
+    private SimpleDateFormat mFormat;
+
+    // 以分钟编号为键的直接映射缓存
+    private final long[] mCachedMinutes = new long[CACHE_SIZE];
+    private final String[] mCachedStrings = new String[CACHE_SIZE];
+
+    // "N 分钟前"和"N 小时前"，用到时才创建
+    private final String[] mMinutesAgo = new String[60];
+    private final String[] mHoursAgo = new String[24];
+    private String mJustNow;
+
+    public TimestampFormatter(Context context) {
+        mResources = context.getResources();
+    }
+
+    /**
+     * 返回时间戳相对于now的显示文字：一分钟内为"刚刚"，一天内为"N 分钟前"或"N 小时前"，
+     * 其余（包括将来的时间）为绝对时间。
+     */
+    public synchronized String format(long timestamp, long now) {
+        checkLocale();
+
+        long age = now - timestamp;
+        if (age < 0 || age >= DAY_MILLIS) {
+            return formatAbsoluteLocked(timestamp);
+        }
+        if (age < MINUTE_MILLIS) {
+            if (mJustNow == null) {
+                mJustNow = mResources.getString(R.string.time_just_now);
+            }
+            return mJustNow;
+        }
+        if (age < HOUR_MILLIS) {
+            int minutes = (int) (age / MINUTE_MILLIS);
+            if (mMinutesAgo[minutes] == null) {
+                mMinutesAgo[minutes] = mResources.getString(R.string.time_minutes_ago, minutes);
+            }
+            return mMinutesAgo[minutes];
+        }
+        int hours = (int) (age / HOUR_MILLIS);
+        if (mHoursAgo[hours] == null) {
+            mHoursAgo[hours] = mResources.getString(R.string.time_hours_ago, hours);
+        }
+        return mHoursAgo[hours];
+    }
+
+    /**
+     * 返回时间戳的绝对时间文字，精确到分钟
+     */
+    public synchronized String formatAbsolute(long timestamp) {
+        checkLocale();
+        return formatAbsoluteLocked(timestamp);
+    }
+
+    private String formatAbsoluteLocked(long timestamp) {
+        long minute = timestamp / MINUTE_MILLIS;
+        // 斐波那契散列取高8位，间隔固定的时间戳（例如每隔几小时）也能分散到不同的槽
+        int slot = (int) ((minute * 0x9E3779B97F4A7C15L) >>> (64 - CACHE_BITS));
+        String cached = mCachedStrings[slot];
+        if (cached != null && mCachedMinutes[slot] == minute) {
+            return cached;
+        }
+
+        String text;
+        try {
+            mDate.setTime(timestamp);
+            text = mFormat.format(mDate);
+        } catch (RuntimeException e) {
+            return mResources.getString(R.string.time_unknown);
+        }
+        mCachedMinutes[slot] = minute;
+        mCachedStrings[slot] = text;
+        return text;
+    }
+
+    /**
+     * 默认语言区域改变后换用对应的格式化器，并清空已经格式化的文字
+     */
+    private void checkLocale() {
+        Locale locale = Locale.getDefault();
+        if (locale.equals(mLocale)) {
+            return;
+        }
+        mLocale = locale;
+        mFormat = mFormats.get(locale);
+        if (mFormat == null) {
+            mFormat = new SimpleDateFormat(ABSOLUTE_PATTERN, locale);
+            mFormats.put(locale, mFormat);
+        }
+
+        Arrays.fill(mCachedStrings, null);
+        Arrays.fill(mMinutesAgo, null);
+        Arrays.fill(mHoursAgo, null);
+        mJustNow = null;
+    }
+}